@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.bench;
+
+import com.stfl.misc.Config;
+import com.stfl.network.IServer;
+import com.stfl.network.LocalServer;
+import com.stfl.network.NioLocalServer;
+import com.stfl.network.NioRemoteServer;
+import com.stfl.network.proxy.IProxy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End to end throughput of the local proxy on loopback: clients, local server, ss server
+ * (stand-in or NioRemoteServer) and target all run in this JVM
+ */
+public class LoopbackBenchmark {
+    private static final String PASSWORD = "loopback";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Config _config;
+    private final boolean _isNio;
+    private final boolean _isNioRemote;
+    private final boolean _isHttp;
+    private final int _connections;
+    private final int _concurrency;
+    private final long _download;
+    private final long _upload;
+
+    private int _localPort;
+    private int _targetPort;
+    private final AtomicInteger _next = new AtomicInteger();
+    private final AtomicInteger _failed = new AtomicInteger();
+    private final AtomicLong _bytes = new AtomicLong();
+    private long[] _firstByteNanos;
+
+    public LoopbackBenchmark(Config config, boolean isNio, boolean isNioRemote, boolean isHttp, int connections, int concurrency, long download, long upload) {
+        _config = config;
+        _isNio = isNio;
+        _isNioRemote = isNioRemote;
+        _isHttp = isHttp;
+        _connections = connections;
+        _concurrency = concurrency;
+        _download = download;
+        _upload = upload;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = new Config();
+        config.setMethod("aes-256-cfb");
+        config.setLogLevel("WARNING");
+        boolean isNio = true;
+        boolean isNioRemote = false;
+        boolean isHttp = false;
+        int connections = 200;
+        int concurrency = 16;
+        long download = 1024 * 1024;
+        long upload = 0;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--config")) {
+                config.loadFromJson(new String(Files.readAllBytes(Paths.get(args[i + 1]))));
+            }
+            else if (args[i].equals("--cipher")) {
+                config.setMethod(args[i + 1]);
+            }
+            else if (args[i].equals("--server")) {
+                isNio = !args[i + 1].equals("io");
+            }
+            else if (args[i].equals("--remote")) {
+                isNioRemote = args[i + 1].equals("nio");
+            }
+            else if (args[i].equals("--proxy")) {
+                isHttp = args[i + 1].equals("http");
+            }
+            else if (args[i].equals("--connections")) {
+                connections = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("--concurrency")) {
+                concurrency = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("--download")) {
+                download = Long.parseLong(args[i + 1]);
+            }
+            else if (args[i].equals("--upload")) {
+                upload = Long.parseLong(args[i + 1]);
+            }
+            else {
+                printUsage();
+                return;
+            }
+        }
+        if ((args.length % 2 != 0) || (download < 1)) {
+            printUsage();
+            return;
+        }
+
+        new LoopbackBenchmark(config, isNio, isNioRemote, isHttp, connections, concurrency, download, upload).run();
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: LoopbackBenchmark --[option] value...");
+        System.out.println("Option:");
+        System.out.println("  --cipher [CIPHER_NAME]     default aes-256-cfb");
+        System.out.println("  --server [nio|io]          local server, default nio");
+        System.out.println("  --remote [stand-in|nio]    ss server, default stand-in");
+        System.out.println("  --proxy [socks5|http]      client protocol, http uses CONNECT, default socks5");
+        System.out.println("  --connections [COUNT]      default 200");
+        System.out.println("  --concurrency [COUNT]      default 16");
+        System.out.println("  --download [BYTES]         per connection, at least 1, default 1048576");
+        System.out.println("  --upload [BYTES]           per connection, default 0");
+        System.out.println("  --config [CONFIG_FILE]     local server tuning, addresses are ignored");
+    }
+
+    public void run() throws Exception {
+        TargetServer target = new TargetServer();
+        _targetPort = target.getPort();
+        start(target, "target");
+        String loopback = InetAddress.getLoopbackAddress().getHostAddress();
+
+        // remote server gets the same tuning as the local one
+        IServer remote;
+        int remotePort;
+        if (_isNioRemote) {
+            Config remoteConfig = new Config();
+            remoteConfig.loadFromJson(_config.saveToJson());
+            remotePort = getFreePort();
+            remoteConfig.setRemoteIpAddress(loopback);
+            remoteConfig.setRemotePort(remotePort);
+            remoteConfig.setPassword(PASSWORD);
+            remote = new NioRemoteServer(remoteConfig);
+            start(remote, "remote");
+            waitForPort(remotePort);
+        }
+        else {
+            StandInServer standIn = new StandInServer(_config.getMethod(), PASSWORD);
+            remotePort = standIn.getPort();
+            remote = standIn;
+            start(standIn, "stand-in");
+        }
+
+        _localPort = getFreePort();
+        _config.setRemoteIpAddress(loopback);
+        _config.setRemotePort(remotePort);
+        _config.setLocalIpAddress(InetAddress.getLoopbackAddress().getHostAddress());
+        _config.setLocalPort(_localPort);
+        _config.setPassword(PASSWORD);
+        _config.setProxyType(IProxy.TYPE.AUTO);
+        IServer server = _isNio ? new NioLocalServer(_config) : new LocalServer(_config);
+        start(server, "local");
+        waitForPort(_localPort);
+
+        _firstByteNanos = new long[_connections];
+        final CountDownLatch done = new CountDownLatch(_concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < _concurrency; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int id;
+                    while ((id = _next.getAndIncrement()) < _connections) {
+                        try {
+                            _firstByteNanos[id] = runClient();
+                        } catch (IOException e) {
+                            _firstByteNanos[id] = -1;
+                            _failed.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }, "client-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        report(elapsed);
+        server.close();
+        remote.close();
+        target.close();
+    }
+
+    /**
+     * One connection through the proxy, returns nanoseconds from connect to the first downloaded byte
+     */
+    private long runClient() throws IOException {
+        long start = System.nanoTime();
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), _localPort);
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            if (_isHttp) {
+                httpConnect(in, out);
+            }
+            else {
+                socks5Connect(in, out);
+            }
+
+            out.writeLong(_download);
+            out.writeLong(_upload);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (long left = _upload; left > 0; left -= buffer.length) {
+                out.write(buffer, 0, (int) Math.min(buffer.length, left));
+            }
+            out.flush();
+
+            int first = in.read();
+            if (first < 0) {
+                throw new IOException("No data");
+            }
+            long firstByte = System.nanoTime() - start;
+            long received = 1;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                received += n;
+            }
+            if (received != _download) {
+                throw new IOException("Received " + received + " of " + _download + " bytes");
+            }
+            _bytes.addAndGet(received + _upload);
+            return firstByte;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void socks5Connect(DataInputStream in, DataOutputStream out) throws IOException {
+        out.write(new byte[] {5, 1, 0});
+        out.flush();
+        in.readFully(new byte[2]);
+
+        byte[] request = {5, 1, 0, 1, 127, 0, 0, 1, (byte) (_targetPort >> 8), (byte) _targetPort};
+        out.write(request);
+        out.flush();
+        byte[] reply = new byte[10];
+        in.readFully(reply);
+        if (reply[1] != 0) {
+            throw new IOException("SOCKS5 connect failed: " + reply[1]);
+        }
+    }
+
+    private void httpConnect(DataInputStream in, DataOutputStream out) throws IOException {
+        String host = "127.0.0.1:" + _targetPort;
+        out.write(("CONNECT " + host + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+
+        // status line and headers up to the empty line
+        StringBuilder response = new StringBuilder();
+        while (!response.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("HTTP CONNECT failed: " + response);
+            }
+            response.append((char) b);
+        }
+        if (!response.toString().startsWith("HTTP/1.0 200") && !response.toString().startsWith("HTTP/1.1 200")) {
+            throw new IOException("HTTP CONNECT failed: " + response);
+        }
+    }
+
+    private void report(long elapsed) {
+        long[] times = new long[_connections];
+        int count = 0;
+        for (long t : _firstByteNanos) {
+            if (t >= 0) {
+                times[count++] = t;
+            }
+        }
+        Arrays.sort(times, 0, count);
+        double seconds = elapsed / 1e9;
+
+        System.out.printf("cipher %s, %s server, %s clients, %d connections (%d concurrent), %d bytes down / %d up%n",
+                _config.getMethod(), _isNio ? "nio" : "io", _isHttp ? "http" : "socks5",
+                _connections, _concurrency, _download, _upload);
+        System.out.printf("elapsed %.2f s, %.1f MB/s, %.1f connections/s, %d failed%n",
+                seconds, _bytes.get() / 1e6 / seconds, count / seconds, _failed.get());
+        if (count > 0) {
+            System.out.printf("time to first byte p50 %.2f ms, p99 %.2f ms%n",
+                    percentile(times, count, 50) / 1e6, percentile(times, count, 99) / 1e6);
+        }
+    }
+
+    private static long percentile(long[] sorted, int count, int percent) {
+        int index = (int) Math.ceil(count * percent / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    private static void start(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static int getFreePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    private static void waitForPort(int port) throws IOException, InterruptedException {
+        for (int i = 0; ; i++) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (IOException e) {
+                if (i == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.bench;
+
+import com.stfl.network.IServer;
+import com.stfl.ss.CryptFactory;
+import com.stfl.ss.ICrypt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Minimal blocking shadowsocks server for loopback measurements, a thread per direction
+ */
+public class StandInServer implements IServer {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private Logger logger = Logger.getLogger(StandInServer.class.getName());
+    private final ServerSocket _serverSocket;
+    private final String _method;
+    private final String _password;
+    private final ExecutorService _executor = Executors.newCachedThreadPool(new DaemonThreadFactory("stand-in"));
+
+    public StandInServer(String method, String password) throws IOException {
+        _method = method;
+        _password = password;
+        _serverSocket = new ServerSocket();
+        _serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+    }
+
+    public int getPort() {
+        return _serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        while (!_serverSocket.isClosed()) {
+            try {
+                final Socket socket = _serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                _executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!_serverSocket.isClosed()) {
+                    logger.warning("Stand-in server accept failed: " + e.toString());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            _serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        _executor.shutdownNow();
+    }
+
+    private void serve(final Socket client) {
+        final ICrypt crypt = CryptFactory.get(_method, _password);
+        Socket target = null;
+        try {
+            InputStream in = client.getInputStream();
+            final OutputStream out = client.getOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+            // address header, then the first payload
+            int headerLength = -1;
+            while (headerLength < 0) {
+                int n = in.read(buffer);
+                if (n < 0) {
+                    return;
+                }
+                crypt.decrypt(buffer, n, plain);
+                header.write(plain.toByteArray());
+                headerLength = getHeaderLength(header.toByteArray());
+            }
+            byte[] data = header.toByteArray();
+            target = connect(data);
+            final Socket remote = target;
+            remote.getOutputStream().write(data, headerLength, data.length - headerLength);
+
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    ByteArrayOutputStream cipher = new ByteArrayOutputStream();
+                    try {
+                        InputStream targetIn = remote.getInputStream();
+                        int n;
+                        while ((n = targetIn.read(buffer)) > 0) {
+                            crypt.encrypt(buffer, n, cipher);
+                            cipher.writeTo(out);
+                        }
+                        client.shutdownOutput();
+                    } catch (IOException e) {
+                        closeQuietly(client);
+                    }
+                }
+            });
+
+            OutputStream targetOut = remote.getOutputStream();
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crypt.decrypt(buffer, n, plain);
+                plain.writeTo(targetOut);
+            }
+            remote.shutdownOutput();
+        } catch (IOException e) {
+            closeQuietly(client);
+            closeQuietly(target);
+        }
+    }
+
+    /**
+     * Length of the ss address header at the start of data, -1 while incomplete
+     */
+    private static int getHeaderLength(byte[] data) throws IOException {
+        if (data.length < 2) {
+            return -1;
+        }
+        int length;
+        switch (data[0]) {
+            case 1:
+                length = 1 + 4 + 2;
+                break;
+            case 3:
+                length = 1 + 1 + (data[1] & 0xff) + 2;
+                break;
+            case 4:
+                length = 1 + 16 + 2;
+                break;
+            default:
+                throw new IOException("Unknown address type " + data[0]);
+        }
+        return (data.length >= length) ? length : -1;
+    }
+
+    private static Socket connect(byte[] header) throws IOException {
+        InetAddress address;
+        int portOffset;
+        if (header[0] == 3) {
+            int length = header[1] & 0xff;
+            address = InetAddress.getByName(new String(header, 2, length, "US-ASCII"));
+            portOffset = 2 + length;
+        }
+        else {
+            int length = (header[0] == 1) ? 4 : 16;
+            address = InetAddress.getByAddress(Arrays.copyOfRange(header, 1, 1 + length));
+            portOffset = 1 + length;
+        }
+        int port = ((header[portOffset] & 0xff) << 8) | (header[portOffset + 1] & 0xff);
+
+        Socket socket = new Socket(address, port);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Sink and source behind the proxy. A request is the download and upload sizes as two
+ * longs followed by the upload, which is read and dropped before the download is sent.
+ */
+public class TargetServer implements Runnable {
+    static final int REQUEST_SIZE = 16;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private Logger logger = Logger.getLogger(TargetServer.class.getName());
+    private final ServerSocket _serverSocket;
+    private final ExecutorService _executor = Executors.newCachedThreadPool(new DaemonThreadFactory("target"));
+    private final byte[] _source = new byte[BUFFER_SIZE];
+
+    public TargetServer() throws IOException {
+        _serverSocket = new ServerSocket();
+        _serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        new Random().nextBytes(_source);
+    }
+
+    public int getPort() {
+        return _serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        while (!_serverSocket.isClosed()) {
+            try {
+                final Socket socket = _serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                _executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!_serverSocket.isClosed()) {
+                    logger.warning("Target server accept failed: " + e.toString());
+                }
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            _serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        _executor.shutdownNow();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            long download = in.readLong();
+            long upload = in.readLong();
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (upload > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, upload));
+                if (n < 0) {
+                    throw new IOException("Upload ended early");
+                }
+                upload -= n;
+            }
+
+            while (download > 0) {
+                int n = (int) Math.min(_source.length, download);
+                out.write(_source, 0, n);
+                download -= n;
+            }
+            socket.shutdownOutput();
+            // wait for the client to close
+            while (in.read(buffer) > 0) {
+                // drain
+            }
+        } catch (IOException e) {
+            // client gone
+        } finally {
+            StandInServer.closeQuietly(socket);
+        }
+    }
+}
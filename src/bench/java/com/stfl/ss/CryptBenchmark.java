@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and first packet cost of every crypt, method list is filled in by
+ * {@link com.stfl.BenchmarkMain} from {@link CryptFactory#getSupportedCiphers()}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptBenchmark {
+    private static final String PASSWORD = "benchmark";
+    // cipher text kept for the decrypt benchmark, a new crypt starts over when it runs out
+    private static final int CIPHER_TEXT_BYTES = 4 * 1024 * 1024;
+
+    @Param({"aes-128-cfb", "aes-256-cfb", "aes-256-ctr", "aes-256-gcm", "chacha20-ietf-poly1305"})
+    public String method;
+
+    @Param({"64", "1500", "16384", "65536"})
+    public int size;
+
+    private ICrypt _encryptor;
+    private ICrypt _decryptor;
+    private ByteBuffer _plain;
+    private ByteBuffer _output;
+    private ByteBuffer[] _cipherTexts;
+    private int _next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        _plain = ByteBuffer.allocateDirect(size);
+        _plain.put(data).flip();
+
+        _encryptor = CryptFactory.get(method, PASSWORD);
+        _output = ByteBuffer.allocateDirect(_encryptor.getOutputSize(size, true) + size);
+        // IV goes out with the first packet, steady state from here
+        encrypt();
+
+        // AEAD crypts reject replayed chunks, so decrypt walks a recorded stream
+        ICrypt recorder = CryptFactory.get(method, PASSWORD);
+        int count = Math.max(64, CIPHER_TEXT_BYTES / size);
+        _cipherTexts = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            ByteBuffer cipherText = ByteBuffer.allocate(recorder.getOutputSize(size, true));
+            recorder.encrypt(_plain.duplicate(), cipherText);
+            cipherText.flip();
+            _cipherTexts[i] = cipherText;
+        }
+        recorder.release();
+        _next = _cipherTexts.length;
+    }
+
+    @Benchmark
+    public ByteBuffer encrypt() {
+        _output.clear();
+        _encryptor.encrypt(_plain.duplicate(), _output);
+        return _output;
+    }
+
+    @Benchmark
+    public ByteBuffer decrypt() {
+        if (_next == _cipherTexts.length) {
+            if (_decryptor != null) {
+                _decryptor.release();
+            }
+            _decryptor = CryptFactory.get(method, PASSWORD);
+            _next = 0;
+        }
+        ByteBuffer cipherText = _cipherTexts[_next++];
+        cipherText.rewind();
+        _output.clear();
+        _decryptor.decrypt(cipherText, _output);
+        return _output;
+    }
+
+    /**
+     * New connection: crypt setup, IV and the first payload, ciphers are given back as on close
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ByteBuffer firstPacket() {
+        ICrypt crypt = CryptFactory.get(method, PASSWORD);
+        _output.clear();
+        crypt.encrypt(_plain.duplicate(), _output);
+        crypt.release();
+        return _output;
+    }
+}
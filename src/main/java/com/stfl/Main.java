@@ -3,14 +3,19 @@ package com.stfl;
 import com.stfl.misc.Config;
 import com.stfl.misc.Util;
 import com.stfl.network.LocalServer;
+import com.stfl.network.LoadGenerator;
 import com.stfl.network.NioLocalServer;
+import com.stfl.network.NioRemoteServer;
+import com.stfl.network.ServerStats;
 import com.stfl.network.proxy.IProxy;
 import com.stfl.network.proxy.ProxyFactory;
 import com.stfl.ss.CryptFactory;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 public class Main {
@@ -28,6 +33,15 @@ public class Main {
     private static void startCommandLine(String[] args) {
         Config config;
 
+        if (args[0].equals("server")) {
+            startServer(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args[0].equals("bench")) {
+            startBench(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         config = parseArgument(args);
         if (config == null) {
             printUsage();
@@ -39,6 +53,26 @@ public class Main {
         try {
             //LocalServer server = new LocalServer(config);
             NioLocalServer server = new NioLocalServer(config);
+            addLatencyDump(server.getStats());
+            Thread t = new Thread(server);
+            t.start();
+            t.join();
+        } catch (Exception e) {
+            logger.warning("Unable to start server: " + e.toString());
+        }
+    }
+
+    private static void startServer(String[] args) {
+        // same options as local side, server listens on the remote address
+        Config config = parseArgument(args);
+        if (config == null) {
+            printUsage();
+            return;
+        }
+
+        try {
+            NioRemoteServer server = new NioRemoteServer(config);
+            addLatencyDump(server.getStats());
             Thread t = new Thread(server);
             t.start();
             t.join();
@@ -47,6 +81,140 @@ public class Main {
         }
     }
 
+    /**
+     * Print stage latencies when the process is stopped, logging may already be reset by its own hook
+     * so print to stdout
+     */
+    private static void addLatencyDump(final ServerStats stats) {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println("Connection latency:");
+                System.out.print(stats.getLatencyReport());
+            }
+        }, "latency-dump"));
+    }
+
+    private static void startBench(String[] args) {
+        String local = "127.0.0.1:1080";
+        String target = null;
+        String echo = null;
+        IProxy.TYPE proxyType = IProxy.TYPE.SOCKS5;
+        int connections = 1000;
+        int concurrency = 100;
+        int rate = 0;
+        int size = 16 * 1024;
+        int timeout = 10000;
+        int pid = 0;
+        LoadGenerator.PATTERN pattern = LoadGenerator.PATTERN.RANDOM;
+
+        if (args.length % 2 != 0) {
+            printBenchUsage();
+            return;
+        }
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (args[i].equals("--connections")) {
+                    connections = Integer.parseInt(args[i + 1]);
+                }
+                else if (args[i].equals("--concurrency")) {
+                    concurrency = Integer.parseInt(args[i + 1]);
+                }
+                else if (args[i].equals("--rate")) {
+                    rate = Integer.parseInt(args[i + 1]);
+                }
+                else if (args[i].equals("--size")) {
+                    size = Integer.parseInt(args[i + 1]);
+                }
+                else if (args[i].equals("--timeout")) {
+                    timeout = Integer.parseInt(args[i + 1]);
+                }
+                else if (args[i].equals("--pid")) {
+                    pid = Integer.parseInt(args[i + 1]);
+                }
+                else if (args[i].equals("--local")) {
+                    local = args[i + 1];
+                }
+                else if (args[i].equals("--target")) {
+                    target = args[i + 1];
+                }
+                else if (args[i].equals("--echo")) {
+                    echo = args[i + 1];
+                }
+                else if (args[i].equals("--proxy")) {
+                    proxyType = IProxy.TYPE.valueOf(args[i + 1].toUpperCase());
+                }
+                else if (args[i].equals("--pattern")) {
+                    pattern = LoadGenerator.PATTERN.valueOf(args[i + 1].toUpperCase());
+                }
+                else {
+                    printBenchUsage();
+                    return;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid argument: " + e.getMessage());
+            printBenchUsage();
+            return;
+        }
+        if (target == null) {
+            target = echo;
+        }
+        if ((target == null) || (proxyType == IProxy.TYPE.AUTO) || (target.lastIndexOf(':') < 0) || (local.lastIndexOf(':') < 0)) {
+            printBenchUsage();
+            return;
+        }
+
+        LoadGenerator.EchoServer echoServer = null;
+        try {
+            if (echo != null) {
+                int split = echo.lastIndexOf(':');
+                echoServer = new LoadGenerator.EchoServer(new InetSocketAddress(echo.substring(0, split), Integer.parseInt(echo.substring(split + 1))));
+                Thread t = new Thread(echoServer, "echo");
+                t.setDaemon(true);
+                t.start();
+            }
+
+            int split = local.lastIndexOf(':');
+            InetSocketAddress localAddress = new InetSocketAddress(local.substring(0, split), Integer.parseInt(local.substring(split + 1)));
+            split = target.lastIndexOf(':');
+            LoadGenerator generator = new LoadGenerator(localAddress, target.substring(0, split), Integer.parseInt(target.substring(split + 1)));
+            generator.setProxyType(proxyType);
+            generator.setConnections(connections);
+            generator.setConcurrency(concurrency);
+            generator.setRate(rate);
+            generator.setPayloadSize(size);
+            generator.setTimeout(timeout);
+            generator.setServerPid(pid);
+            generator.setPattern(pattern);
+            generator.run();
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warning("Unable to start bench: " + e.toString());
+        } finally {
+            if (echoServer != null) {
+                echoServer.close();
+            }
+        }
+    }
+
+    private static void printBenchUsage() {
+        System.out.println("Usage: ss bench --[option] value --[option] value...");
+        System.out.println("Option:");
+        System.out.println("  --local [IP:PORT]           running local server, default 127.0.0.1:1080");
+        System.out.println("  --proxy [socks5|http]       session protocol, default socks5");
+        System.out.println("  --target [HOST:PORT]        echo service reached through the proxy");
+        System.out.println("  --echo [IP:PORT]            start a built-in echo target, default for --target");
+        System.out.println("  --connections [COUNT]       sessions in total, default 1000");
+        System.out.println("  --concurrency [COUNT]       sessions open at the same time, default 100");
+        System.out.println("  --rate [COUNT]              new sessions per second, default 0 (no limit)");
+        System.out.println("  --size [BYTES]              payload sent and echoed per session, default 16384");
+        System.out.println("  --pattern [zero|random|text] payload content, default random");
+        System.out.println("  --timeout [MS]              per session, default 10000");
+        System.out.println("  --pid [PID]                 report cpu, memory and threads of the local server");
+        System.out.println("Example:");
+        System.out.println("  ss bench --local \"127.0.0.1:1080\" --echo \"127.0.0.1:7007\" --connections 10000 --concurrency 500");
+    }
+
     private static Config parseArgument(String[] args) {
         Config config = new Config();
 
@@ -108,6 +276,8 @@ public class Main {
 
     private static void printUsage() {
         System.out.println("Usage: ss --[option] value --[option] value...");
+        System.out.println("       ss server --[option] value --[option] value...");
+        System.out.println("       ss bench --[option] value --[option] value...");
         System.out.println("Option:");
         System.out.println("  --local [IP:PORT]");
         System.out.println("  --remote [IP:PORT]");
@@ -126,5 +296,6 @@ public class Main {
         System.out.println("Example:");
         System.out.println("  ss --local \"127.0.0.1:1080\" --remote \"[SS_SERVER_IP]:1080\" --cipher \"aes-256-cfb\" --password \"HelloWorld\"");
         System.out.println("  ss --config config.json");
+        System.out.println("  ss server --config config.json");
     }
 }
@@ -35,6 +35,7 @@ import com.stfl.network.proxy.IProxy;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 import com.stfl.ss.AesCrypt;
+import com.stfl.ss.backend.CipherBackendFactory;
 
 /**
  * Data class for configuration to bring up server
@@ -48,6 +49,22 @@ public class Config {
     private String _password;
     private String _logLevel;
     private IProxy.TYPE _proxyType;
+    private int _eventLoops;
+    private int _cryptoThreads;
+    private int _resolverThreads;
+    private int _maxWriteIovecs;
+    private int _writeHighWatermark;
+    private int _writeLowWatermark;
+    private int _connectTimeout;
+    private int _handshakeTimeout;
+    private int _idleTimeout;
+    private int _connectRetries;
+    private int _connectRetryDelay;
+    private int _circuitBreakerThreshold;
+    private int _circuitBreakerCooldown;
+    private String _cipherBackend;
+    private int _parallelDecryptThreshold;
+    private int _keyStreamLookahead;
 
     public Config() {
         loadFromJson("");
@@ -143,6 +160,134 @@ public class Config {
         return _logLevel;
     }
 
+    public void setEventLoops(int value) {
+        _eventLoops = value;
+    }
+
+    public int getEventLoops() {
+        return _eventLoops;
+    }
+
+    public void setCryptoThreads(int value) {
+        _cryptoThreads = value;
+    }
+
+    public int getCryptoThreads() {
+        return _cryptoThreads;
+    }
+
+    public void setResolverThreads(int value) {
+        _resolverThreads = value;
+    }
+
+    public int getResolverThreads() {
+        return _resolverThreads;
+    }
+
+    public void setMaxWriteIovecs(int value) {
+        _maxWriteIovecs = value;
+    }
+
+    public int getMaxWriteIovecs() {
+        return _maxWriteIovecs;
+    }
+
+    public void setWriteHighWatermark(int value) {
+        _writeHighWatermark = value;
+    }
+
+    public int getWriteHighWatermark() {
+        return _writeHighWatermark;
+    }
+
+    public void setWriteLowWatermark(int value) {
+        _writeLowWatermark = value;
+    }
+
+    public int getWriteLowWatermark() {
+        return _writeLowWatermark;
+    }
+
+    public void setConnectTimeout(int value) {
+        _connectTimeout = value;
+    }
+
+    public int getConnectTimeout() {
+        return _connectTimeout;
+    }
+
+    public void setHandshakeTimeout(int value) {
+        _handshakeTimeout = value;
+    }
+
+    public int getHandshakeTimeout() {
+        return _handshakeTimeout;
+    }
+
+    public void setIdleTimeout(int value) {
+        _idleTimeout = value;
+    }
+
+    public int getIdleTimeout() {
+        return _idleTimeout;
+    }
+
+    public void setConnectRetries(int value) {
+        _connectRetries = value;
+    }
+
+    public int getConnectRetries() {
+        return _connectRetries;
+    }
+
+    public void setConnectRetryDelay(int value) {
+        _connectRetryDelay = value;
+    }
+
+    public int getConnectRetryDelay() {
+        return _connectRetryDelay;
+    }
+
+    public void setCircuitBreakerThreshold(int value) {
+        _circuitBreakerThreshold = value;
+    }
+
+    public int getCircuitBreakerThreshold() {
+        return _circuitBreakerThreshold;
+    }
+
+    public void setCircuitBreakerCooldown(int value) {
+        _circuitBreakerCooldown = value;
+    }
+
+    public int getCircuitBreakerCooldown() {
+        return _circuitBreakerCooldown;
+    }
+
+    public void setCipherBackend(String value) {
+        _cipherBackend = value;
+    }
+
+    public String getCipherBackend() {
+        return _cipherBackend;
+    }
+
+    public void setParallelDecryptThreshold(int value) {
+        _parallelDecryptThreshold = value;
+    }
+
+    public int getParallelDecryptThreshold() {
+        return _parallelDecryptThreshold;
+    }
+
+    public void setKeyStreamLookahead(int value) {
+        _keyStreamLookahead = value;
+    }
+
+    public int getKeyStreamLookahead() {
+        return _keyStreamLookahead;
+    }
+
     public void loadFromJson(String jsonStr) {
         if (jsonStr.length() == 0) {
             jsonStr = "{}";
@@ -156,6 +301,31 @@ public class Config {
         _method = (String)jObj.getOrDefault("method", AesCrypt.CIPHER_AES_256_CFB);
         _password = (String)jObj.getOrDefault("password", "");
         _logLevel = (String)jObj.getOrDefault("logLevel", "INFO");
+        // 0 runs one event loop per core
+        _eventLoops = ((Number)jObj.getOrDefault("eventLoops", 0)).intValue();
+        _cryptoThreads = ((Number)jObj.getOrDefault("cryptoThreads", 0)).intValue();
+        // most concurrent domain name lookups of server mode
+        _resolverThreads = ((Number)jObj.getOrDefault("resolverThreads", 8)).intValue();
+        _maxWriteIovecs = ((Number)jObj.getOrDefault("maxWriteIovecs", 64)).intValue();
+        _writeHighWatermark = ((Number)jObj.getOrDefault("writeHighWatermark", 256 * 1024)).intValue();
+        _writeLowWatermark = ((Number)jObj.getOrDefault("writeLowWatermark", 64 * 1024)).intValue();
+        // timeouts in milliseconds, 0 disables
+        _connectTimeout = ((Number)jObj.getOrDefault("connectTimeout", 10000)).intValue();
+        _handshakeTimeout = ((Number)jObj.getOrDefault("handshakeTimeout", 10000)).intValue();
+        _idleTimeout = ((Number)jObj.getOrDefault("idleTimeout", 300000)).intValue();
+        // upstream connect retries, delay doubles on each retry
+        _connectRetries = ((Number)jObj.getOrDefault("connectRetries", 2)).intValue();
+        _connectRetryDelay = ((Number)jObj.getOrDefault("connectRetryDelay", 200)).intValue();
+        // consecutive connect failures opening the circuit, 0 disables
+        _circuitBreakerThreshold = ((Number)jObj.getOrDefault("circuitBreakerThreshold", 5)).intValue();
+        _circuitBreakerCooldown = ((Number)jObj.getOrDefault("circuitBreakerCooldown", 10000)).intValue();
+        // cipher backend name, auto picks the fastest one at startup
+        _cipherBackend = (String)jObj.getOrDefault("cipherBackend", CipherBackendFactory.AUTO);
+        // CFB decrypt buffers of at least this many bytes are split across cores, 0 disables.
+        // Relay reads are at most 16KB, so values from 8192 to 16384 apply to downloads
+        _parallelDecryptThreshold = ((Number)jObj.getOrDefault("parallelDecryptThreshold", 0)).intValue();
+        // bytes of OFB/CTR key stream generated ahead per connection and direction, 0 disables
+        _keyStreamLookahead = ((Number)jObj.getOrDefault("keyStreamLookahead", 0)).intValue();
         setProxyType((String) jObj.getOrDefault("proxyType", IProxy.TYPE.SOCKS5.toString().toLowerCase()));
         setLogLevel(_logLevel);
     }
@@ -170,6 +340,25 @@ public class Config {
         jObj.put("password", _password);
         jObj.put("proxyType", _proxyType.toString().toLowerCase());
         jObj.put("logLevel", _logLevel);
+        if (_eventLoops > 0) {
+            // keep following the core count unless the user picked one
+            jObj.put("eventLoops", _eventLoops);
+        }
+        jObj.put("cryptoThreads", _cryptoThreads);
+        jObj.put("resolverThreads", _resolverThreads);
+        jObj.put("maxWriteIovecs", _maxWriteIovecs);
+        jObj.put("writeHighWatermark", _writeHighWatermark);
+        jObj.put("writeLowWatermark", _writeLowWatermark);
+        jObj.put("connectTimeout", _connectTimeout);
+        jObj.put("handshakeTimeout", _handshakeTimeout);
+        jObj.put("idleTimeout", _idleTimeout);
+        jObj.put("connectRetries", _connectRetries);
+        jObj.put("connectRetryDelay", _connectRetryDelay);
+        jObj.put("circuitBreakerThreshold", _circuitBreakerThreshold);
+        jObj.put("circuitBreakerCooldown", _circuitBreakerCooldown);
+        jObj.put("cipherBackend", _cipherBackend);
+        jObj.put("parallelDecryptThreshold", _parallelDecryptThreshold);
+        jObj.put("keyStreamLookahead", _keyStreamLookahead);
 
         return Util.prettyPrintJson(jObj);
     }
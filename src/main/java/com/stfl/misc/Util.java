@@ -35,10 +35,14 @@ import com.stfl.network.proxy.Socks5Proxy;
 import org.json.simple.JSONObject;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
  * Helper class
@@ -132,12 +136,12 @@ public class Util {
                 neededLength = 6;
                 if (data.length > neededLength) {
                     port = getPort(data[5], data[6]);
-                    ret = String.format("%d.%d.%d.%d:%d", data[1], data[2], data[3], data[4], port);
+                    ret = String.format("%d.%d.%d.%d:%d", data[1] & 0xff, data[2] & 0xff, data[3] & 0xff, data[4] & 0xff, port);
                 }
                 break;
             case Socks5Proxy.ATYP_DOMAIN_NAME:
                 // domain
-                neededLength = data[1];
+                neededLength = data[1] & 0xff;
                 if (data.length > neededLength + 3) {
                     port = getPort(data[neededLength + 2], data[neededLength + 3]);
                     String domain = bytesToString(data, 2, neededLength);
@@ -161,6 +165,59 @@ public class Util {
         return ret;
     }
 
+    /**
+     * Length of the address header at the start of data, -1 if more data is needed
+     * or 0 if the address type is unknown
+     */
+    public static int getRequestedHostLength(byte[] data, int length) {
+        if (length < 1) {
+            return -1;
+        }
+
+        int neededLength;
+        switch (data[0]) {
+            case Socks5Proxy.ATYP_IP_V4:
+                // type (1 byte) + ip (4 bytes) + port (2 bytes)
+                neededLength = 7;
+                break;
+            case Socks5Proxy.ATYP_DOMAIN_NAME:
+                // type (1 byte) + length (1 byte) + domain + port (2 bytes)
+                if (length < 2) {
+                    return -1;
+                }
+                neededLength = (data[1] & 0xff) + 4;
+                break;
+            case Socks5Proxy.ATYP_IP_V6:
+                // type (1 byte) + ip (16 bytes) + port (2 bytes)
+                neededLength = 19;
+                break;
+            default:
+                return 0;
+        }
+
+        return (length >= neededLength) ? neededLength : -1;
+    }
+
+    /**
+     * Address of a complete header, domain name is left unresolved
+     */
+    public static InetSocketAddress getRequestedAddress(byte[] data) throws UnknownHostException {
+        switch (data[0]) {
+            case Socks5Proxy.ATYP_IP_V4:
+                return new InetSocketAddress(InetAddress.getByAddress(Arrays.copyOfRange(data, 1, 5)),
+                        getPort(data[5], data[6]));
+            case Socks5Proxy.ATYP_DOMAIN_NAME:
+                int length = data[1] & 0xff;
+                return InetSocketAddress.createUnresolved(bytesToString(data, 2, length),
+                        getPort(data[length + 2], data[length + 3]));
+            case Socks5Proxy.ATYP_IP_V6:
+                return new InetSocketAddress(InetAddress.getByAddress(Arrays.copyOfRange(data, 1, 17)),
+                        getPort(data[17], data[18]));
+        }
+
+        throw new UnknownHostException("Unknown address type: " + data[0]);
+    }
+
     public static String bytesToString(byte[] data, int start, int length) {
         String str = "";
 
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Timestamps of one connection, stage latencies go to the histograms of ServerStats.
+ * Upstream may be connected before the handshake is done, the connect stage is then zero
+ */
+public class ConnectionTimer {
+    private final ServerStats _stats;
+    private final long _acceptNanos;
+    private volatile long _handshakeNanos;
+    private volatile long _connectedNanos;
+    private final AtomicBoolean _connectRecorded = new AtomicBoolean();
+    // first byte comes from the thread reading the remote socket only
+    private boolean _firstByteRecorded;
+
+    public ConnectionTimer(ServerStats stats) {
+        _stats = stats;
+        _acceptNanos = System.nanoTime();
+    }
+
+    public void handshakeDone() {
+        if (_handshakeNanos != 0) {
+            return;
+        }
+        _handshakeNanos = System.nanoTime();
+        _stats.getHandshakeLatency().record(toMicros(_handshakeNanos - _acceptNanos));
+        recordConnect();
+    }
+
+    public void upstreamConnected() {
+        if (_connectedNanos != 0) {
+            return;
+        }
+        _connectedNanos = System.nanoTime();
+        recordConnect();
+    }
+
+    public void firstByte() {
+        if (_firstByteRecorded) {
+            return;
+        }
+        _firstByteRecorded = true;
+        long now = System.nanoTime();
+        long ready = Math.max(_handshakeNanos, _connectedNanos);
+        if (ready != 0) {
+            _stats.getFirstByteLatency().record(toMicros(now - ready));
+        }
+        _stats.getTotalLatency().record(toMicros(now - _acceptNanos));
+    }
+
+    private void recordConnect() {
+        // both stages have to be done, whichever comes last records
+        long handshake = _handshakeNanos;
+        long connected = _connectedNanos;
+        if ((handshake == 0) || (connected == 0) || !_connectRecorded.compareAndSet(false, true)) {
+            return;
+        }
+        _stats.getConnectLatency().record(toMicros(Math.max(0, connected - handshake)));
+    }
+
+    private static long toMicros(long nanos) {
+        return nanos / 1000;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network;
+
+import java.util.Map;
+
+/**
+ * Management interface of a running server
+ */
+public interface IServerMXBean {
+    long getActiveConnections();
+    long getAcceptedConnections();
+    long getClosedConnections();
+    long getLocalBytesIn();
+    long getLocalBytesOut();
+    long getRemoteBytesIn();
+    long getRemoteBytesOut();
+    Map<String, Double> getEncryptNanosPerByte();
+    Map<String, Double> getDecryptNanosPerByte();
+    int getWorkerThreads();
+    int getIvPoolDepth();
+    long getIvPoolHits();
+    long getIvPoolMisses();
+    long getIvRefills();
+    long getIvAverageRefillNanos();
+    long getIvReseeds();
+    int getJvmThreads();
+    LatencyHistogram.Snapshot getHandshakeLatency();
+    LatencyHistogram.Snapshot getConnectLatency();
+    LatencyHistogram.Snapshot getFirstByteLatency();
+    LatencyHistogram.Snapshot getTotalLatency();
+    String getLatencyReport();
+    void resetLatency();
+}
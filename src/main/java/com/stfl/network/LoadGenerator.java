@@ -0,0 +1,733 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network;
+
+import com.stfl.misc.Util;
+import com.stfl.network.proxy.IProxy;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Load generator for a running local server, SOCKS5 or HTTP CONNECT sessions to an echo
+ * target are driven by a single selector so the generator itself stays cheap
+ */
+public class LoadGenerator implements Runnable {
+    public enum PATTERN {ZERO, RANDOM, TEXT}
+
+    private static final int STAGE_CONNECT = 0;
+    private static final int STAGE_HELLO = 1;
+    private static final int STAGE_REQUEST = 2;
+    private static final int STAGE_DATA = 3;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int HTTP_RESPONSE_SIZE = 1024;
+    private static final long TIMEOUT_CHECK_NANOS = 100 * 1000 * 1000L;
+    // /proc/[pid]/stat counts cpu time in clock ticks
+    private static final int CLOCK_TICKS = 100;
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog. ";
+
+    private Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+    private final InetSocketAddress _local;
+    private final String _targetHost;
+    private final int _targetPort;
+    private IProxy.TYPE _proxyType = IProxy.TYPE.SOCKS5;
+    private int _connections = 1000;
+    private int _concurrency = 100;
+    private int _rate;
+    private int _payloadSize = 16 * 1024;
+    private PATTERN _pattern = PATTERN.RANDOM;
+    private int _timeout = 10000;
+    private int _pid;
+
+    private byte[] _payload;
+    private byte[] _request;
+    private Selector _selector;
+    private final ByteBuffer _readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private int _started;
+    private int _active;
+    private int _completed;
+    private long _bytesSent;
+    private long _bytesReceived;
+    // errors per stage
+    private int _connectErrors;
+    private int _handshakeErrors;
+    private int _ioErrors;
+    private int _timeouts;
+    private int _mismatches;
+    // latency of succeeded sessions in microseconds, accessed by selector thread only
+    private long[] _connectMicros;
+    private long[] _handshakeMicros;
+    private long[] _firstByteMicros;
+    private int _succeeded;
+
+    /**
+     * State of one proxy session, the target echoes back whatever it gets
+     */
+    private static class Session {
+        SocketChannel channel;
+        int stage;
+        long startNanos;
+        long connectMicros;
+        long handshakeMicros;
+        long firstByteMicros;
+        long deadline;
+        ByteBuffer out;
+        ByteBuffer in;
+        long received;
+    }
+
+    public LoadGenerator(InetSocketAddress local, String targetHost, int targetPort) {
+        _local = local;
+        _targetHost = targetHost;
+        _targetPort = targetPort;
+    }
+
+    public void setProxyType(IProxy.TYPE value) {
+        _proxyType = value;
+    }
+
+    public void setConnections(int value) {
+        _connections = value;
+    }
+
+    public void setConcurrency(int value) {
+        _concurrency = value;
+    }
+
+    /**
+     * New sessions per second, 0 for as fast as concurrency allows
+     */
+    public void setRate(int value) {
+        _rate = value;
+    }
+
+    public void setPayloadSize(int value) {
+        _payloadSize = value;
+    }
+
+    public void setPattern(PATTERN value) {
+        _pattern = value;
+    }
+
+    public void setTimeout(int value) {
+        _timeout = value;
+    }
+
+    /**
+     * Process id of the local server, its cpu, memory and threads are reported from /proc
+     */
+    public void setServerPid(int value) {
+        _pid = value;
+    }
+
+    @Override
+    public void run() {
+        _payload = createPayload(_pattern, _payloadSize);
+        _request = createRequest();
+        _connectMicros = new long[_connections];
+        _handshakeMicros = new long[_connections];
+        _firstByteMicros = new long[_connections];
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuStart = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+        ProcessUsage serverStart = ProcessUsage.read(_pid);
+        long start = System.nanoTime();
+
+        try {
+            _selector = Selector.open();
+            loop(start);
+            _selector.close();
+        } catch (IOException e) {
+            logger.warning(Util.getErrorMessage(e));
+            return;
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long cpu = (cpuStart >= 0) ? threads.getCurrentThreadCpuTime() - cpuStart : -1;
+        report(elapsed, cpu, serverStart, ProcessUsage.read(_pid));
+    }
+
+    private void loop(long start) throws IOException {
+        long nextStart = start;
+        long nextTimeoutCheck = start + TIMEOUT_CHECK_NANOS;
+        long interval = (_rate > 0) ? 1000000000L / _rate : 0;
+
+        while (_completed < _connections) {
+            long now = System.nanoTime();
+            while ((_active < _concurrency) && (_started < _connections) && (now >= nextStart)) {
+                startSession(now);
+                nextStart += interval;
+            }
+
+            // wake up for the next session to start or the timeout check, whichever comes first
+            long wait = nextTimeoutCheck - now;
+            if ((_rate > 0) && (_started < _connections) && (_active < _concurrency)) {
+                wait = Math.min(wait, nextStart - now);
+            }
+            if (wait > 1000000) {
+                _selector.select(wait / 1000000);
+            }
+            else {
+                _selector.selectNow();
+            }
+
+            Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    process(key);
+                }
+            }
+
+            now = System.nanoTime();
+            if (now >= nextTimeoutCheck) {
+                expireSessions(now);
+                nextTimeoutCheck = now + TIMEOUT_CHECK_NANOS;
+            }
+        }
+    }
+
+    private void startSession(long now) {
+        _started++;
+        _active++;
+        Session session = new Session();
+        session.startNanos = now;
+        session.deadline = now + _timeout * 1000000L;
+
+        try {
+            session.channel = SocketChannel.open();
+            session.channel.configureBlocking(false);
+            session.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (session.channel.connect(_local)) {
+                session.channel.register(_selector, 0, session);
+                connected(session);
+            }
+            else {
+                session.channel.register(_selector, SelectionKey.OP_CONNECT, session);
+            }
+        } catch (IOException e) {
+            _connectErrors++;
+            finish(session, false);
+        }
+    }
+
+    private void process(SelectionKey key) {
+        Session session = (Session) key.attachment();
+        int stage = session.stage;
+        try {
+            if (key.isConnectable()) {
+                session.channel.finishConnect();
+                connected(session);
+                return;
+            }
+            if (key.isWritable()) {
+                write(session, key);
+            }
+            if (key.isValid() && key.isReadable()) {
+                read(session);
+            }
+        } catch (IOException e) {
+            countError(stage);
+            finish(session, false);
+        }
+    }
+
+    private void countError(int stage) {
+        if (stage == STAGE_CONNECT) {
+            _connectErrors++;
+        }
+        else if (stage == STAGE_DATA) {
+            _ioErrors++;
+        }
+        else {
+            _handshakeErrors++;
+        }
+    }
+
+    private void connected(Session session) throws IOException {
+        session.connectMicros = (System.nanoTime() - session.startNanos) / 1000;
+        if (_proxyType == IProxy.TYPE.HTTP) {
+            String host = _targetHost + ":" + _targetPort;
+            String request = "CONNECT " + host + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n";
+            session.out = ByteBuffer.wrap(request.getBytes("US-ASCII"));
+            session.in = ByteBuffer.allocate(HTTP_RESPONSE_SIZE);
+            session.stage = STAGE_REQUEST;
+        }
+        else {
+            session.out = ByteBuffer.wrap(new byte[] {5, 1, 0});
+            // method selection reply
+            session.in = ByteBuffer.allocate(2);
+            session.stage = STAGE_HELLO;
+        }
+        interest(session, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void write(Session session, SelectionKey key) throws IOException {
+        int n = session.channel.write(session.out);
+        if (session.stage == STAGE_DATA) {
+            _bytesSent += n;
+        }
+        if (!session.out.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void read(Session session) throws IOException {
+        if (session.stage == STAGE_DATA) {
+            readEcho(session);
+            return;
+        }
+
+        if (session.channel.read(session.in) < 0) {
+            throw new IOException("Closed during handshake");
+        }
+
+        if (session.stage == STAGE_HELLO) {
+            if (session.in.hasRemaining()) {
+                return;
+            }
+            if (session.in.get(1) != 0) {
+                throw new IOException("SOCKS5 method rejected");
+            }
+            // connect reply with bound address, the local server always replies with IPv4
+            session.out = ByteBuffer.wrap(_request);
+            session.in = ByteBuffer.allocate(10);
+            session.stage = STAGE_REQUEST;
+            interest(session, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+
+        if (_proxyType == IProxy.TYPE.HTTP) {
+            String response = new String(session.in.array(), 0, session.in.position(), "US-ASCII");
+            if ((response.length() >= 5) && !response.startsWith("HTTP/")) {
+                // e.g. local server only speaks SOCKS5
+                throw new IOException("Not a HTTP response");
+            }
+            if (!response.contains("\r\n\r\n")) {
+                if (!session.in.hasRemaining()) {
+                    throw new IOException("HTTP response too long");
+                }
+                return;
+            }
+            if (!response.startsWith("HTTP/1.") || !response.split("\r\n")[0].contains(" 200")) {
+                throw new IOException("HTTP CONNECT failed: " + response.split("\r\n")[0]);
+            }
+        }
+        else {
+            if (session.in.hasRemaining()) {
+                return;
+            }
+            if (session.in.get(1) != 0) {
+                throw new IOException("SOCKS5 connect failed: " + session.in.get(1));
+            }
+        }
+
+        session.handshakeMicros = (System.nanoTime() - session.startNanos) / 1000;
+        session.stage = STAGE_DATA;
+        session.in = null;
+        if (_payload.length == 0) {
+            finish(session, true);
+            return;
+        }
+        session.out = ByteBuffer.wrap(_payload);
+        interest(session, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void readEcho(Session session) throws IOException {
+        _readBuffer.clear();
+        int n = session.channel.read(_readBuffer);
+        if (n < 0) {
+            throw new IOException("Closed after " + session.received + " bytes");
+        }
+        if (n == 0) {
+            return;
+        }
+
+        if (session.received == 0) {
+            session.firstByteMicros = (System.nanoTime() - session.startNanos) / 1000;
+        }
+        _readBuffer.flip();
+        int offset = (int) session.received;
+        if (offset + n > _payload.length) {
+            _mismatches++;
+            finish(session, false);
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            if (_readBuffer.get(i) != _payload[offset + i]) {
+                _mismatches++;
+                finish(session, false);
+                return;
+            }
+        }
+        session.received += n;
+        _bytesReceived += n;
+
+        if (session.received == _payload.length) {
+            finish(session, true);
+        }
+    }
+
+    private void interest(Session session, int ops) {
+        SelectionKey key = session.channel.keyFor(_selector);
+        if (key != null) {
+            key.interestOps(ops);
+        }
+    }
+
+    private void expireSessions(long now) {
+        for (SelectionKey key : _selector.keys()) {
+            Session session = (Session) key.attachment();
+            if ((session != null) && key.isValid() && (now >= session.deadline)) {
+                _timeouts++;
+                finish(session, false);
+            }
+        }
+    }
+
+    private void finish(Session session, boolean succeeded) {
+        if (session.channel != null) {
+            SelectionKey key = session.channel.keyFor(_selector);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                session.channel.close();
+            } catch (IOException e) {
+                logger.fine(e.toString());
+            }
+        }
+
+        if (succeeded) {
+            _connectMicros[_succeeded] = session.connectMicros;
+            _handshakeMicros[_succeeded] = session.handshakeMicros;
+            // nothing is echoed without payload
+            _firstByteMicros[_succeeded] = (_payload.length == 0) ? session.handshakeMicros : session.firstByteMicros;
+            _succeeded++;
+        }
+        _active--;
+        _completed++;
+    }
+
+    /**
+     * SOCKS5 connect request, the address part is the same as the ss header
+     */
+    private byte[] createRequest() {
+        byte[] header;
+        try {
+            InetAddress address = isLiteralAddress(_targetHost) ? InetAddress.getByName(_targetHost) : null;
+            if (address == null) {
+                header = Util.composeSSHeader(_targetHost, _targetPort);
+            }
+            else {
+                byte[] ip = address.getAddress();
+                header = new byte[ip.length + 3];
+                header[0] = (byte) ((ip.length == 4) ? 1 : 4);
+                System.arraycopy(ip, 0, header, 1, ip.length);
+                header[ip.length + 1] = (byte) (_targetPort >> 8);
+                header[ip.length + 2] = (byte) _targetPort;
+            }
+        } catch (IOException e) {
+            header = Util.composeSSHeader(_targetHost, _targetPort);
+        }
+
+        byte[] request = new byte[header.length + 3];
+        request[0] = 5;
+        request[1] = 1;
+        System.arraycopy(header, 0, request, 3, header.length);
+        return request;
+    }
+
+    private static boolean isLiteralAddress(String host) {
+        return host.matches("\\d{1,3}(\\.\\d{1,3}){3}") || host.contains(":");
+    }
+
+    static byte[] createPayload(PATTERN pattern, int size) {
+        byte[] payload = new byte[size];
+        switch (pattern) {
+            case RANDOM:
+                new Random(size).nextBytes(payload);
+                break;
+            case TEXT:
+                for (int i = 0; i < size; i++) {
+                    payload[i] = (byte) TEXT.charAt(i % TEXT.length());
+                }
+                break;
+            default:
+                break;
+        }
+        return payload;
+    }
+
+    private void report(long elapsedNanos, long cpuNanos, ProcessUsage serverStart, ProcessUsage serverEnd) {
+        double seconds = elapsedNanos / 1e9;
+        int failed = _completed - _succeeded;
+
+        System.out.printf("%d sessions (%d concurrent, %s), %d bytes %s payload via %s %s:%d -> %s:%d%n",
+                _connections, _concurrency, (_rate > 0) ? _rate + "/s" : "no rate limit",
+                _payloadSize, _pattern.toString().toLowerCase(), _proxyType.toString().toLowerCase(),
+                _local.getHostString(), _local.getPort(), _targetHost, _targetPort);
+        System.out.printf("elapsed %.2f s, %d succeeded, %d failed (connect %d, handshake %d, io %d, timeout %d, mismatch %d)%n",
+                seconds, _succeeded, failed, _connectErrors, _handshakeErrors, _ioErrors, _timeouts, _mismatches);
+        System.out.printf("throughput %.1f MB/s up, %.1f MB/s down, %.1f sessions/s%n",
+                _bytesSent / seconds / (1024 * 1024), _bytesReceived / seconds / (1024 * 1024), _succeeded / seconds);
+
+        if (_succeeded > 0) {
+            System.out.println("latency (ms)        p50      p90      p99      max");
+            printPercentiles("connect", _connectMicros);
+            printPercentiles("handshake", _handshakeMicros);
+            printPercentiles("first byte", _firstByteMicros);
+            System.out.println("session setup (connect + handshake) histogram:");
+            printHistogram(_handshakeMicros);
+        }
+
+        if (cpuNanos >= 0) {
+            System.out.printf("generator cpu %.2f s (%.0f%% of a core)%n", cpuNanos / 1e9, 100.0 * cpuNanos / elapsedNanos);
+        }
+        if ((serverStart != null) && (serverEnd != null)) {
+            double serverCpu = (double) (serverEnd.cpuTicks - serverStart.cpuTicks) / CLOCK_TICKS;
+            System.out.printf("server pid %d: cpu %.2f s (%.0f%% of a core), rss %.1f MB -> %.1f MB, threads %d -> %d%n",
+                    _pid, serverCpu, 100.0 * serverCpu / seconds,
+                    serverStart.rssKb / 1024.0, serverEnd.rssKb / 1024.0, serverStart.threads, serverEnd.threads);
+        }
+        else if (_pid > 0) {
+            System.out.println("server pid " + _pid + ": usage not available");
+        }
+    }
+
+    private void printPercentiles(String name, long[] micros) {
+        long[] sorted = Arrays.copyOf(micros, _succeeded);
+        Arrays.sort(sorted);
+        System.out.printf("  %-12s %8.2f %8.2f %8.2f %8.2f%n", name,
+                percentile(sorted, 0.5) / 1000.0, percentile(sorted, 0.9) / 1000.0,
+                percentile(sorted, 0.99) / 1000.0, sorted[sorted.length - 1] / 1000.0);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Power of two buckets in microseconds, empty buckets on both ends are skipped
+     */
+    private void printHistogram(long[] micros) {
+        int[] buckets = new int[40];
+        for (int i = 0; i < _succeeded; i++) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(1, micros[i]))]++;
+        }
+        int first = 0;
+        int last = buckets.length - 1;
+        while (buckets[first] == 0) {
+            first++;
+        }
+        while (buckets[last] == 0) {
+            last--;
+        }
+
+        int max = 0;
+        for (int count : buckets) {
+            max = Math.max(max, count);
+        }
+        for (int i = first; i <= last; i++) {
+            int bar = (int) ((long) buckets[i] * 40 / max);
+            System.out.printf("  < %9.3f ms %7d %s%n", (1L << i) / 1000.0, buckets[i], repeat('#', bar));
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /**
+     * Cpu, memory and thread count of a process, read from /proc
+     */
+    private static class ProcessUsage {
+        long cpuTicks;
+        long rssKb;
+        int threads;
+
+        static ProcessUsage read(int pid) {
+            if (pid <= 0) {
+                return null;
+            }
+
+            try {
+                ProcessUsage usage = new ProcessUsage();
+                String stat = new String(Files.readAllBytes(Paths.get("/proc/" + pid + "/stat")), "US-ASCII");
+                // fields after the command name, which could contain spaces, utime and stime are 14th and 15th
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                usage.cpuTicks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+
+                List<String> status = Files.readAllLines(Paths.get("/proc/" + pid + "/status"), StandardCharsets.US_ASCII);
+                for (String line : status) {
+                    if (line.startsWith("VmRSS:")) {
+                        usage.rssKb = Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+                    }
+                    else if (line.startsWith("Threads:")) {
+                        usage.threads = Integer.parseInt(line.substring(8).trim());
+                    }
+                }
+                return usage;
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Echo target for the sessions, served on its own selector thread
+     */
+    public static class EchoServer implements IServer {
+        private Logger logger = Logger.getLogger(EchoServer.class.getName());
+        private final Selector _selector;
+        private final ServerSocketChannel _serverChannel;
+        private final ByteBuffer _buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        public EchoServer(InetSocketAddress address) throws IOException {
+            _selector = Selector.open();
+            _serverChannel = ServerSocketChannel.open();
+            _serverChannel.configureBlocking(false);
+            _serverChannel.socket().bind(address, 1024);
+            _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+        }
+
+        @Override
+        public void run() {
+            while (_selector.isOpen()) {
+                try {
+                    _selector.select();
+                    Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        else {
+                            echo(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.warning(Util.getErrorMessage(e));
+                } catch (ClosedSelectorException e) {
+                    break;
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel = _serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.register(_selector, SelectionKey.OP_READ);
+        }
+
+        /**
+         * Data which could not be written is kept as attachment, reading stops until it is gone
+         */
+        private void echo(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                ByteBuffer pending = (ByteBuffer) key.attachment();
+                if (pending != null) {
+                    channel.write(pending);
+                    if (pending.hasRemaining()) {
+                        return;
+                    }
+                    key.attach(null);
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+
+                _buffer.clear();
+                int n = channel.read(_buffer);
+                if (n < 0) {
+                    key.cancel();
+                    channel.close();
+                    return;
+                }
+                _buffer.flip();
+                channel.write(_buffer);
+                if (_buffer.hasRemaining()) {
+                    ByteBuffer rest = ByteBuffer.allocate(_buffer.remaining());
+                    rest.put(_buffer).flip();
+                    key.attach(rest);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    logger.fine(ex.toString());
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                _selector.close();
+                _serverChannel.close();
+            } catch (IOException e) {
+                logger.warning(Util.getErrorMessage(e));
+            }
+        }
+    }
+}
@@ -37,8 +37,9 @@ import java.net.Socket;
 import java.security.InvalidAlgorithmParameterException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Logger;
 
 import com.stfl.Constant;
@@ -46,6 +47,7 @@ import com.stfl.misc.Config;
 import com.stfl.misc.Util;
 import com.stfl.network.io.PipeSocket;
 import com.stfl.ss.CryptFactory;
+import com.stfl.ss.backend.CipherBackendFactory;
 
 /**
  * Blocking local server for shadowsocks
@@ -54,18 +56,33 @@ public class LocalServer implements IServer {
     private Logger logger = Logger.getLogger(LocalServer.class.getName());
     private Config _config;
     private ServerSocket _serverSocket;
-    private Executor _executor;
+    private ExecutorService _executor;
     private List<PipeSocket> _pipes;
+    private final ServerStats _stats = new ServerStats();
+    private ServerMXBean _mbean;
 
     public LocalServer(Config config) throws IOException, InvalidAlgorithmParameterException {
         if (!CryptFactory.isCipherExisted(config.getMethod())) {
             throw new InvalidAlgorithmParameterException(config.getMethod());
         }
+        // calibrate cipher backend now instead of on the first connection
+        CipherBackendFactory.configure(config);
+        CryptFactory.get(config.getMethod(), config.getPassword());
+
         _config = config;
         _serverSocket = new ServerSocket(config.getLocalPort(), 128);
         _executor = Executors.newCachedThreadPool();
         _pipes = new ArrayList<>();
 
+        // blocking sockets have no queues, a pair of threads serves each connection
+        _mbean = new ServerMXBean(_stats) {
+            @Override
+            public int getWorkerThreads() {
+                return ((ThreadPoolExecutor) _executor).getActiveCount();
+            }
+        };
+        _mbean.register("LocalServer", config.getLocalPort());
+
         // print server info
         logger.info("Shadowsocks-Java v" + Constant.VERSION);
         logger.info(config.getProxyType() + " Proxy Server starts at port: " + config.getLocalPort());
@@ -73,19 +90,23 @@ public class LocalServer implements IServer {
 
     @Override
     public void run() {
-        while (true) {
+        while (!_serverSocket.isClosed()) {
             try {
                 Socket localSocket = _serverSocket.accept();
-                PipeSocket pipe = new PipeSocket(_executor, localSocket, _config);
+                PipeSocket pipe = new PipeSocket(_executor, localSocket, _config, _stats);
+                _stats.connectionAccepted();
                 _pipes.add(pipe);
                 _executor.execute(pipe);
             } catch (IOException e) {
-                logger.warning(Util.getErrorMessage(e));
+                if (!_serverSocket.isClosed()) {
+                    logger.warning(Util.getErrorMessage(e));
+                }
             }
         }
     }
 
     public void close() {
+        _mbean.unregister();
         try {
             for (PipeSocket p : _pipes) {
                 p.close();
@@ -95,6 +116,11 @@ public class LocalServer implements IServer {
         } catch (IOException e) {
             logger.warning(Util.getErrorMessage(e));
         }
+        logger.info("Connection latency:\n" + _stats.getLatencyReport());
+    }
+
+    public ServerStats getStats() {
+        return _stats;
     }
 
 }
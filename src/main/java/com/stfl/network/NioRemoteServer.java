@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network;
+
+import com.stfl.misc.Config;
+import com.stfl.network.nio.PipeWorker;
+import com.stfl.network.nio.RemoteSocketHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking remote server for shadowsocks, relays ss clients to their targets
+ */
+public class NioRemoteServer extends NioServerBase {
+    private Logger logger = Logger.getLogger(NioRemoteServer.class.getName());
+
+    public NioRemoteServer(Config config) throws IOException, InvalidAlgorithmParameterException {
+        super(config, true);
+        logger.info("Server starts at " + config.getRemoteIpAddress() + ":" + config.getRemotePort());
+    }
+
+    @Override
+    protected InetSocketAddress getBindAddress() {
+        return new InetSocketAddress(_config.getRemoteIpAddress(), _config.getRemotePort());
+    }
+
+    @Override
+    protected PipeWorker createPipe(RemoteSocketHandler loop, SocketChannel socketChannel) throws IOException {
+        // target is known once the address header is decrypted, the loop connects it then
+        return loop.createServerPipe(socketChannel);
+    }
+
+    @Override
+    protected String getMBeanType() {
+        return "NioRemoteServer";
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network;
+
+import com.stfl.Constant;
+import com.stfl.misc.Config;
+import com.stfl.misc.Util;
+import com.stfl.network.nio.*;
+import com.stfl.ss.CryptFactory;
+import com.stfl.ss.backend.CipherBackendFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.security.InvalidAlgorithmParameterException;
+import java.util.logging.Logger;
+
+/**
+ * Acceptor of the non-blocking servers, accepted sockets are handed over to a group of event
+ * loops which serve both sockets of a connection
+ */
+public abstract class NioServerBase extends SocketHandlerBase {
+    private Logger logger = Logger.getLogger(NioServerBase.class.getName());
+
+    private ServerSocketChannel _serverChannel;
+    private EventLoopGroup _loopGroup;
+    private ServerMXBean _mbean;
+
+    /**
+     * Address to listen on, called by the base constructor so only _config can be used
+     */
+    protected abstract InetSocketAddress getBindAddress();
+
+    /**
+     * Create the pipe of an accepted socket on the given loop, null if the connection was rejected
+     */
+    protected abstract PipeWorker createPipe(RemoteSocketHandler loop, SocketChannel socketChannel) throws IOException;
+
+    /**
+     * Type of the MBean, registered together with the port listened on
+     */
+    protected abstract String getMBeanType();
+
+    /**
+     * @param isServer true for ss server mode, whose loops resolve and connect targets
+     */
+    public NioServerBase(Config config, boolean isServer) throws IOException, InvalidAlgorithmParameterException {
+        super(config);
+
+        // calibrate cipher backend now instead of on the first connection
+        CipherBackendFactory.configure(config);
+        CryptFactory.get(config.getMethod(), config.getPassword());
+
+        // init event loops
+        _loopGroup = new EventLoopGroup(_config, _stats, isServer);
+        _mbean = new NioServerMXBean(_stats, _loopGroup);
+        _mbean.register(getMBeanType(), getBindAddress().getPort());
+
+        // print server info
+        logger.info("Shadowsocks-Java v" + Constant.VERSION);
+        logger.info("Cipher: " + config.getMethod());
+    }
+
+    @Override
+    protected Selector initSelector() throws IOException {
+        Selector socketSelector = SelectorProvider.provider().openSelector();
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.configureBlocking(false);
+        _serverChannel.socket().bind(getBindAddress());
+        _serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
+
+        return socketSelector;
+    }
+
+    @Override
+    protected boolean processPendingRequest(ChangeRequest request) {
+        // acceptor does not own any connection
+        return true;
+    }
+
+    @Override
+    protected void processSelect(SelectionKey key) {
+        // Handle event
+        try {
+            if (key.isAcceptable()) {
+                accept(key);
+            }
+        }
+        catch (IOException e) {
+            logger.warning(Util.getErrorMessage(e));
+        }
+    }
+
+    private void accept(SelectionKey key) throws IOException {
+        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+        SocketChannel socketChannel = serverSocketChannel.accept();
+        if (socketChannel == null) {
+            return;
+        }
+        socketChannel.configureBlocking(false);
+        _stats.connectionAccepted();
+
+        // hand over accepted socket to one of the loops, its peer socket will be registered on the same loop
+        RemoteSocketHandler loop = _loopGroup.next();
+        try {
+            if (createPipe(loop, socketChannel) == null) {
+                _stats.connectionClosed();
+            }
+        } catch (IOException e) {
+            socketChannel.close();
+            _stats.connectionClosed();
+            throw e;
+        }
+    }
+
+    @Override
+    public WriteStats getWriteStats() {
+        // acceptor does not write, report the loops
+        return _loopGroup.getWriteStats();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        _mbean.unregister();
+
+        try {
+            _serverChannel.close();
+            _loopGroup.close();
+        } catch (IOException e) {
+            logger.warning(Util.getErrorMessage(e));
+        }
+        logger.info("Connection latency:\n" + _stats.getLatencyReport());
+        logger.info("Server closed.");
+    }
+}
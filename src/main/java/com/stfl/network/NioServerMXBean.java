@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network;
+
+import com.stfl.network.nio.BufferPool;
+import com.stfl.network.nio.EventLoopGroup;
+
+/**
+ * MBean of the non-blocking servers, gauges are collected from the event loops
+ */
+class NioServerMXBean extends ServerMXBean implements INioServerMXBean {
+    private final EventLoopGroup _loopGroup;
+
+    public NioServerMXBean(ServerStats stats, EventLoopGroup loopGroup) {
+        super(stats);
+        _loopGroup = loopGroup;
+    }
+
+    @Override
+    public long getPendingWriteBytes() {
+        return _loopGroup.getPendingWriteBytes();
+    }
+
+    @Override
+    public int getPendingWriteQueues() {
+        return _loopGroup.getPendingWriteQueues();
+    }
+
+    @Override
+    public int getPipeQueueSize() {
+        return _loopGroup.getPipeQueueSize();
+    }
+
+    // the pool is shared by all servers of the process
+    @Override
+    public long getBufferPoolHits() {
+        return BufferPool.getInstance().getHits();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return BufferPool.getInstance().getMisses();
+    }
+
+    @Override
+    public long getBufferPoolLeaks() {
+        return BufferPool.getInstance().getLeaks();
+    }
+
+    @Override
+    public long getBufferPoolLeased() {
+        return BufferPool.getInstance().getLeased();
+    }
+
+    @Override
+    public long getWakeups() {
+        return _loopGroup.getWakeups();
+    }
+
+    @Override
+    public long getWakeupsSuppressed() {
+        return _loopGroup.getWakeupsSuppressed();
+    }
+
+    @Override
+    public long getConnectTimeouts() {
+        return _loopGroup.getConnectTimeouts();
+    }
+
+    @Override
+    public long getHandshakeTimeouts() {
+        return _loopGroup.getHandshakeTimeouts();
+    }
+
+    @Override
+    public long getIdleTimeouts() {
+        return _loopGroup.getIdleTimeouts();
+    }
+
+    @Override
+    public long getConnectRetries() {
+        return _loopGroup.getConnectRetries();
+    }
+
+    @Override
+    public long getConnectFailures() {
+        return _loopGroup.getConnectFailures();
+    }
+
+    @Override
+    public long getCircuitRejects() {
+        return _loopGroup.getCircuitRejects();
+    }
+
+    @Override
+    public int getWorkerThreads() {
+        return _loopGroup.size() + _loopGroup.getCryptoThreads();
+    }
+}
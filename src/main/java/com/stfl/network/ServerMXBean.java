@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network;
+
+import com.stfl.ss.CryptStats;
+import com.stfl.ss.IvGenerator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * MBean of a server, counters come from ServerStats and the queue and thread gauges are
+ * computed by the server when the attribute is read
+ */
+public abstract class ServerMXBean implements IServerMXBean {
+    private static final String DOMAIN = "com.stfl.shadowsocks";
+
+    private Logger logger = Logger.getLogger(ServerMXBean.class.getName());
+    private final ServerStats _stats;
+    private ObjectName _name;
+
+    public ServerMXBean(ServerStats stats) {
+        _stats = stats;
+    }
+
+    /**
+     * Register to the platform MBean server as DOMAIN:type=[type],port=[port], failure only
+     * costs the visibility
+     */
+    public void register(String type, int port) {
+        try {
+            _name = new ObjectName(DOMAIN + ":type=" + type + ",port=" + port);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(_name)) {
+                server.unregisterMBean(_name);
+            }
+            server.registerMBean(this, _name);
+        } catch (JMException e) {
+            logger.warning("Unable to register MBean: " + e.toString());
+            _name = null;
+        }
+    }
+
+    public void unregister() {
+        if (_name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(_name);
+        } catch (JMException e) {
+            logger.fine(e.toString());
+        }
+        _name = null;
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return _stats.getActive();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return _stats.getAccepted();
+    }
+
+    @Override
+    public long getClosedConnections() {
+        return _stats.getClosed();
+    }
+
+    @Override
+    public long getLocalBytesIn() {
+        return _stats.getLocalBytesIn();
+    }
+
+    @Override
+    public long getLocalBytesOut() {
+        return _stats.getLocalBytesOut();
+    }
+
+    @Override
+    public long getRemoteBytesIn() {
+        return _stats.getRemoteBytesIn();
+    }
+
+    @Override
+    public long getRemoteBytesOut() {
+        return _stats.getRemoteBytesOut();
+    }
+
+    @Override
+    public Map<String, Double> getEncryptNanosPerByte() {
+        return CryptStats.getAllNanosPerByte(true);
+    }
+
+    @Override
+    public Map<String, Double> getDecryptNanosPerByte() {
+        return CryptStats.getAllNanosPerByte(false);
+    }
+
+    // IVs and salts come from one generator per process
+    @Override
+    public int getIvPoolDepth() {
+        return IvGenerator.getInstance().getPoolDepth();
+    }
+
+    @Override
+    public long getIvPoolHits() {
+        return IvGenerator.getInstance().getHits();
+    }
+
+    @Override
+    public long getIvPoolMisses() {
+        return IvGenerator.getInstance().getMisses();
+    }
+
+    @Override
+    public long getIvRefills() {
+        return IvGenerator.getInstance().getRefills();
+    }
+
+    @Override
+    public long getIvAverageRefillNanos() {
+        return IvGenerator.getInstance().getAverageRefillNanos();
+    }
+
+    @Override
+    public long getIvReseeds() {
+        return IvGenerator.getInstance().getReseeds();
+    }
+
+    @Override
+    public int getJvmThreads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getHandshakeLatency() {
+        return _stats.getHandshakeLatency().snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getConnectLatency() {
+        return _stats.getConnectLatency().snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getFirstByteLatency() {
+        return _stats.getFirstByteLatency().snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getTotalLatency() {
+        return _stats.getTotalLatency().snapshot();
+    }
+
+    @Override
+    public String getLatencyReport() {
+        return _stats.getLatencyReport();
+    }
+
+    @Override
+    public void resetLatency() {
+        _stats.resetLatency();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection and traffic counters and connection stage latencies of a server, updated from the IO
+ * threads without contention.
+ * Local side is the accepted socket, remote side is the socket the server connects to
+ */
+public class ServerStats {
+    private final LongAdder _accepted = new LongAdder();
+    private final LongAdder _closed = new LongAdder();
+    private final LongAdder _localBytesIn = new LongAdder();
+    private final LongAdder _localBytesOut = new LongAdder();
+    private final LongAdder _remoteBytesIn = new LongAdder();
+    private final LongAdder _remoteBytesOut = new LongAdder();
+    // accept to handshake done, handshake to upstream connected, upstream connected to first byte back
+    private final LatencyHistogram _handshakeLatency = new LatencyHistogram();
+    private final LatencyHistogram _connectLatency = new LatencyHistogram();
+    private final LatencyHistogram _firstByteLatency = new LatencyHistogram();
+    private final LatencyHistogram _totalLatency = new LatencyHistogram();
+
+    public void connectionAccepted() {
+        _accepted.increment();
+    }
+
+    public void connectionClosed() {
+        _closed.increment();
+    }
+
+    /**
+     * Bytes read from (in) or written to (out) a local or remote socket
+     */
+    public void addBytes(boolean isLocal, boolean isIn, long bytes) {
+        if (isLocal) {
+            (isIn ? _localBytesIn : _localBytesOut).add(bytes);
+        }
+        else {
+            (isIn ? _remoteBytesIn : _remoteBytesOut).add(bytes);
+        }
+    }
+
+    public long getAccepted() {
+        return _accepted.sum();
+    }
+
+    public long getClosed() {
+        return _closed.sum();
+    }
+
+    public long getActive() {
+        // closed is read first, so a connection accepted in between never makes it negative
+        long closed = _closed.sum();
+        return _accepted.sum() - closed;
+    }
+
+    public long getLocalBytesIn() {
+        return _localBytesIn.sum();
+    }
+
+    public long getLocalBytesOut() {
+        return _localBytesOut.sum();
+    }
+
+    public long getRemoteBytesIn() {
+        return _remoteBytesIn.sum();
+    }
+
+    public long getRemoteBytesOut() {
+        return _remoteBytesOut.sum();
+    }
+
+    public LatencyHistogram getHandshakeLatency() {
+        return _handshakeLatency;
+    }
+
+    public LatencyHistogram getConnectLatency() {
+        return _connectLatency;
+    }
+
+    public LatencyHistogram getFirstByteLatency() {
+        return _firstByteLatency;
+    }
+
+    public LatencyHistogram getTotalLatency() {
+        return _totalLatency;
+    }
+
+    public void resetLatency() {
+        _handshakeLatency.reset();
+        _connectLatency.reset();
+        _firstByteLatency.reset();
+        _totalLatency.reset();
+    }
+
+    /**
+     * Stage latencies in microseconds, one line per stage
+     */
+    public String getLatencyReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-10s %8s %10s %10s %10s %10s %10s %10s%n",
+                "stage(us)", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        appendLatency(sb, "handshake", _handshakeLatency);
+        appendLatency(sb, "connect", _connectLatency);
+        appendLatency(sb, "firstbyte", _firstByteLatency);
+        appendLatency(sb, "total", _totalLatency);
+        return sb.toString();
+    }
+
+    private static void appendLatency(StringBuilder sb, String stage, LatencyHistogram histogram) {
+        LatencyHistogram.Snapshot s = histogram.snapshot();
+        sb.append(String.format("%-10s %8d %10.1f %10d %10d %10d %10d %10d%n",
+                stage, s.getCount(), s.getMean(), s.getP50(), s.getP90(), s.getP99(), s.getP999(), s.getMax()));
+    }
+}
@@ -34,6 +34,8 @@ package com.stfl.network.io;
 import com.stfl.misc.Config;
 import com.stfl.misc.Util;
 import com.stfl.Constant;
+import com.stfl.network.ConnectionTimer;
+import com.stfl.network.ServerStats;
 import com.stfl.network.proxy.IProxy;
 import com.stfl.network.proxy.ProxyFactory;
 import com.stfl.ss.CryptFactory;
@@ -44,6 +46,7 @@ import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -62,9 +65,18 @@ public class PipeSocket implements Runnable {
     private boolean _isClosed;
     private Executor _executor;
     private Config _config;
+    private ServerStats _stats;
+    private ConnectionTimer _timer;
+    private final AtomicInteger _runningWorkers = new AtomicInteger();
 
     public PipeSocket(Executor executor, Socket socket, Config config) throws IOException {
+        this(executor, socket, config, new ServerStats());
+    }
+
+    public PipeSocket(Executor executor, Socket socket, Config config, ServerStats stats) throws IOException {
         _executor = executor;
+        _stats = stats;
+        _timer = new ConnectionTimer(stats);
         _local = socket;
         _local.setSoTimeout(TIMEOUT);
         _config = config;
@@ -79,14 +91,33 @@ public class PipeSocket implements Runnable {
         try {
             _remote = initRemote(_config);
             _remote.setSoTimeout(TIMEOUT);
+            _timer.upstreamConnected();
         } catch (IOException e) {
             close();
+            _crypt.release();
             logger.warning(Util.getErrorMessage(e));
             return;
         }
 
-        _executor.execute(getLocalWorker());
-        _executor.execute(getRemoteWorker());
+        _runningWorkers.set(2);
+        startWorker(getLocalWorker());
+        startWorker(getRemoteWorker());
+    }
+
+    private void startWorker(final Runnable worker) {
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    worker.run();
+                } finally {
+                    // both workers use the crypt, keyed ciphers are reused once the last one exits
+                    if (_runningWorkers.decrementAndGet() == 0) {
+                        _crypt.release();
+                    }
+                }
+            }
+        });
     }
 
     private Socket initRemote(Config config) throws IOException {
@@ -119,6 +150,7 @@ public class PipeSocket implements Runnable {
                         if (readCount == -1) {
                             throw new IOException("Local socket closed (Read)!");
                         }
+                        _stats.addBytes(true, true, readCount);
 
                         // initialize proxy
                         if (!_proxy.isReady()) {
@@ -137,11 +169,15 @@ public class PipeSocket implements Runnable {
                             if (sendData == null) {
                                 continue;
                             }
+                            _timer.handshakeDone();
                             logger.info("Connected to: " + Util.getRequestedHostInfo(sendData.get(0)));
                         }
                         else {
-                            sendData.clear();
-                            sendData.add(dataBuffer);
+                            // only the part of the buffer filled by this read
+                            if (!sendRemote(dataBuffer, readCount)) {
+                                throw new IOException("Remote socket closed (Write)!");
+                            }
+                            continue;
                         }
 
                         for (byte[] bytes : sendData) {
@@ -187,6 +223,8 @@ public class PipeSocket implements Runnable {
                         if (readCount == -1) {
                             throw new IOException("Remote socket closed (Read)!");
                         }
+                        _stats.addBytes(false, true, readCount);
+                        _timer.firstByte();
 
                         // send data to local socket
                         if (!sendLocal(dataBuffer, readCount)) {
@@ -211,6 +249,7 @@ public class PipeSocket implements Runnable {
             return;
         }
         _isClosed = true;
+        _stats.connectionClosed();
 
         try {
             _local.shutdownInput();
@@ -242,6 +281,7 @@ public class PipeSocket implements Runnable {
             if (length > 0) {
                 OutputStream outStream = _remote.getOutputStream();
                 outStream.write(data, 0, length);
+                _stats.addBytes(false, false, length);
             }
             else {
                 logger.info("Nothing to sendRemote!\n");
@@ -255,7 +295,13 @@ public class PipeSocket implements Runnable {
     }
 
     private boolean sendLocal(byte[] data, int length) {
-        _crypt.decrypt(data, length, _localOutStream);
+        try {
+            _crypt.decrypt(data, length, _localOutStream);
+        } catch (IllegalStateException e) {
+            // e.g. AEAD chunk failed authentication
+            logger.warning(e.getMessage());
+            return false;
+        }
         byte[] sendData = _localOutStream.toByteArray();
 
         return _sendLocal(sendData, sendData.length);
@@ -265,6 +311,7 @@ public class PipeSocket implements Runnable {
         try {
             OutputStream outStream = _local.getOutputStream();
             outStream.write(data, 0, length);
+            _stats.addBytes(true, false, length);
         } catch (IOException e) {
             logger.info(Util.getErrorMessage(e));
             return false;
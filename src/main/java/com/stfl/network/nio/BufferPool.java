@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network.nio;
+
+import com.stfl.misc.Util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Slab allocator of direct byte buffers with power-of-two size classes.
+ * Leak detection is enabled while FINE logging is on for this class.
+ */
+public class BufferPool {
+    private static final int MIN_SIZE_SHIFT = 10; // 1KB
+    private static final int MAX_SIZE_SHIFT = 16; // 64KB
+    private static final int SLAB_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BYTES_PER_CLASS = 16 * 1024 * 1024;
+    private static final BufferPool instance = new BufferPool();
+
+    private Logger logger = Logger.getLogger(BufferPool.class.getName());
+    private final Queue<ByteBuffer>[] _freeLists;
+    private final AtomicInteger[] _freeCounts;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _leaks = new AtomicLong();
+    private final AtomicLong _leased = new AtomicLong();
+    private final ReferenceQueue<PooledBuffer> _leakQueue = new ReferenceQueue<>();
+    private final Set<LeakRecord> _leakRecords = Collections.newSetFromMap(new ConcurrentHashMap<LeakRecord, Boolean>());
+
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    public BufferPool() {
+        int classes = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+        @SuppressWarnings("unchecked")
+        Queue<ByteBuffer>[] freeLists = (Queue<ByteBuffer>[]) new Queue<?>[classes];
+        _freeLists = freeLists;
+        _freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            _freeLists[i] = new ConcurrentLinkedQueue<>();
+            _freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    public PooledBuffer lease(int size) {
+        PooledBuffer pooled;
+        int sizeClass = sizeClassOf(size);
+
+        if (sizeClass < 0) {
+            // too large to be pooled
+            _misses.incrementAndGet();
+            pooled = new PooledBuffer(this, ByteBuffer.allocateDirect(size), -1);
+        }
+        else {
+            ByteBuffer buffer = _freeLists[sizeClass].poll();
+            if (buffer != null) {
+                _freeCounts[sizeClass].decrementAndGet();
+                _hits.incrementAndGet();
+            }
+            else {
+                _misses.incrementAndGet();
+                buffer = allocateSlab(sizeClass);
+            }
+            buffer.clear();
+            pooled = new PooledBuffer(this, buffer, sizeClass);
+        }
+
+        _leased.incrementAndGet();
+        if (logger.isLoggable(Level.FINE)) {
+            reportLeaks();
+            pooled.leakRecord = new LeakRecord(pooled, _leakQueue);
+            _leakRecords.add(pooled.leakRecord);
+        }
+        return pooled;
+    }
+
+    public PooledBuffer wrap(byte[] data, int offset, int length) {
+        PooledBuffer pooled = lease(length);
+        pooled.buffer().put(data, offset, length);
+        pooled.buffer().flip();
+        return pooled;
+    }
+
+    void recycle(PooledBuffer pooled) {
+        _leased.decrementAndGet();
+        if (pooled.leakRecord != null) {
+            _leakRecords.remove(pooled.leakRecord);
+            pooled.leakRecord.clear();
+            pooled.leakRecord = null;
+        }
+        offer(pooled.buffer(), pooled.sizeClass());
+    }
+
+    private void offer(ByteBuffer buffer, int sizeClass) {
+        if (sizeClass < 0) {
+            return;
+        }
+        // keep memory bounded after a burst, extra buffers are left to GC
+        if (_freeCounts[sizeClass].incrementAndGet() > (MAX_POOLED_BYTES_PER_CLASS >> (sizeClass + MIN_SIZE_SHIFT))) {
+            _freeCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        _freeLists[sizeClass].offer(buffer);
+    }
+
+    private ByteBuffer allocateSlab(int sizeClass) {
+        int size = 1 << (sizeClass + MIN_SIZE_SHIFT);
+        ByteBuffer slab = ByteBuffer.allocateDirect(Math.max(size, SLAB_SIZE));
+        ByteBuffer first = null;
+
+        for (int pos = 0; pos + size <= slab.capacity(); pos += size) {
+            slab.limit(pos + size).position(pos);
+            ByteBuffer slice = slab.slice();
+            if (first == null) {
+                first = slice;
+            }
+            else {
+                offer(slice, sizeClass);
+            }
+        }
+        return first;
+    }
+
+    private void reportLeaks() {
+        LeakRecord record;
+        while ((record = (LeakRecord) _leakQueue.poll()) != null) {
+            if (!_leakRecords.remove(record)) {
+                continue;
+            }
+            _leaks.incrementAndGet();
+            _leased.decrementAndGet();
+            logger.warning("PooledBuffer leaked, it was leased at: " + Util.getErrorMessage(record.trace));
+            // buffer is still reachable from the record, put it back
+            offer(record.buffer, record.sizeClass);
+        }
+    }
+
+    private static int sizeClassOf(int size) {
+        if (size > (1 << MAX_SIZE_SHIFT)) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SIZE_SHIFT) - MIN_SIZE_SHIFT;
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public long getLeaks() {
+        return _leaks.get();
+    }
+
+    public long getLeased() {
+        return _leased.get();
+    }
+
+    static class LeakRecord extends WeakReference<PooledBuffer> {
+        final ByteBuffer buffer;
+        final int sizeClass;
+        final Throwable trace;
+
+        LeakRecord(PooledBuffer referent, ReferenceQueue<PooledBuffer> queue) {
+            super(referent, queue);
+            buffer = referent.buffer();
+            sizeClass = referent.sizeClass();
+            trace = new Throwable("PooledBuffer lease");
+        }
+    }
+}
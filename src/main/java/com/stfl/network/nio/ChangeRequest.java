@@ -31,6 +31,7 @@
 
 package com.stfl.network.nio;
 
+import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
 
 /**
@@ -40,10 +41,14 @@ public class ChangeRequest {
     public static final int REGISTER_CHANNEL = 1;
     public static final int CHANGE_SOCKET_OP = 2;
     public static final int CLOSE_CHANNEL = 3;
+    public static final int SUSPEND_READ = 4;
+    public static final int CONNECT_CHANNEL = 5;
+    public static final int RESUME_READ = 6;
 
     public SocketChannel socket;
     public int type;
     public int op;
+    public InetSocketAddress address;
 
     public ChangeRequest(SocketChannel socket, int type, int op) {
         this.socket = socket;
@@ -54,4 +59,9 @@ public class ChangeRequest {
     public ChangeRequest(SocketChannel socket, int type) {
         this(socket, type, 0);
     }
+
+    public ChangeRequest(SocketChannel socket, int type, InetSocketAddress address) {
+        this(socket, type, 0);
+        this.address = address;
+    }
 }
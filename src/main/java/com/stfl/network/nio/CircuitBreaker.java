@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network.nio;
+
+import com.stfl.misc.Config;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker for an upstream server, shared by all loops connecting to it
+ */
+public class CircuitBreaker {
+    private static final ConcurrentMap<InetSocketAddress, CircuitBreaker> _breakers = new ConcurrentHashMap<>();
+
+    private final int _threshold;
+    private final long _cooldown;
+    private final AtomicInteger _failures = new AtomicInteger();
+    private final AtomicLong _openUntil = new AtomicLong();
+
+    public static CircuitBreaker forUpstream(InetSocketAddress address, Config config) {
+        CircuitBreaker breaker = _breakers.get(address);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(config.getCircuitBreakerThreshold(), config.getCircuitBreakerCooldown());
+            breaker = _breakers.putIfAbsent(address, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    public CircuitBreaker(int threshold, long cooldown) {
+        _threshold = threshold;
+        _cooldown = cooldown;
+    }
+
+    /**
+     * Whether a connect attempt could be made, once the breaker is open a single probe
+     * is let through per cooldown period
+     */
+    public boolean allowRequest() {
+        if ((_threshold <= 0) || (_failures.get() < _threshold)) {
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        long openUntil = _openUntil.get();
+        if ((now >= openUntil) && _openUntil.compareAndSet(openUntil, now + _cooldown)) {
+            return true;
+        }
+
+        return false;
+    }
+
+    public void onSuccess() {
+        _failures.set(0);
+    }
+
+    public void onFailure() {
+        if (_failures.incrementAndGet() >= _threshold) {
+            // (re)open, failed probe keeps the breaker open for another period
+            _openUntil.set(System.currentTimeMillis() + _cooldown);
+        }
+    }
+
+    public boolean isOpen() {
+        return (_threshold > 0) && (_failures.get() >= _threshold);
+    }
+}
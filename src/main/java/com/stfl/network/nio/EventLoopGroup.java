@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network.nio;
+
+import com.stfl.misc.Config;
+import com.stfl.network.ServerStats;
+
+import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Group of selector loops, every connection pair is bound to one of them
+ */
+public class EventLoopGroup {
+    private static final int RESOLVER_QUEUE_SIZE = 1024;
+    private static final int RESOLVER_KEEP_ALIVE = 60; // s
+
+    private Logger logger = Logger.getLogger(EventLoopGroup.class.getName());
+    private final RemoteSocketHandler[] _loops;
+    private final AtomicInteger _index = new AtomicInteger();
+    private ExecutorService _executor;
+    private ExecutorService _cryptoExecutor;
+    private ThreadPoolExecutor _resolver;
+    private int _cryptoThreads;
+
+    public EventLoopGroup(Config config) throws IOException, InvalidAlgorithmParameterException {
+        this(config, new ServerStats(), false);
+    }
+
+    /**
+     * @param isServer loops of server mode connect targets by name, a resolver is kept for them
+     */
+    public EventLoopGroup(Config config, ServerStats stats, boolean isServer) throws IOException, InvalidAlgorithmParameterException {
+        int count = config.getEventLoops();
+        if (count <= 0) {
+            count = Runtime.getRuntime().availableProcessors();
+        }
+
+        _loops = new RemoteSocketHandler[count];
+        _executor = Executors.newFixedThreadPool(count);
+        // without crypto threads, pipes are processed inline on their own loop
+        if (config.getCryptoThreads() > 0) {
+            _cryptoExecutor = Executors.newFixedThreadPool(config.getCryptoThreads());
+            _cryptoThreads = config.getCryptoThreads();
+        }
+        // domain name lookups of server side, threads are only started on demand and lookups
+        // beyond the queue are refused instead of piling up threads
+        if (isServer) {
+            int threads = Math.max(1, config.getResolverThreads());
+            _resolver = new ThreadPoolExecutor(threads, threads, RESOLVER_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(RESOLVER_QUEUE_SIZE), new ThreadFactory() {
+                        private final AtomicInteger _count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "resolver-" + _count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            _resolver.allowCoreThreadTimeOut(true);
+        }
+        for (int i = 0; i < count; i++) {
+            _loops[i] = new RemoteSocketHandler(config, _cryptoExecutor, _resolver, stats);
+            _executor.execute(_loops[i]);
+        }
+        logger.info("Event loops: " + count + ", crypto threads: " + config.getCryptoThreads());
+    }
+
+    public RemoteSocketHandler next() {
+        int i = _index.getAndIncrement() & Integer.MAX_VALUE;
+        return _loops[i % _loops.length];
+    }
+
+    public WriteStats getWriteStats() {
+        WriteStats stats = new WriteStats();
+        for (RemoteSocketHandler loop : _loops) {
+            stats.add(loop.getWriteStats());
+        }
+        return stats;
+    }
+
+    public long getWakeups() {
+        long total = 0;
+        for (RemoteSocketHandler loop : _loops) {
+            total += loop.getWakeups();
+        }
+        return total;
+    }
+
+    public long getWakeupsSuppressed() {
+        long total = 0;
+        for (RemoteSocketHandler loop : _loops) {
+            total += loop.getWakeupsSuppressed();
+        }
+        return total;
+    }
+
+    public long getConnectTimeouts() {
+        long total = 0;
+        for (RemoteSocketHandler loop : _loops) {
+            total += loop.getConnectTimeouts();
+        }
+        return total;
+    }
+
+    public long getHandshakeTimeouts() {
+        long total = 0;
+        for (RemoteSocketHandler loop : _loops) {
+            total += loop.getHandshakeTimeouts();
+        }
+        return total;
+    }
+
+    public long getIdleTimeouts() {
+        long total = 0;
+        for (RemoteSocketHandler loop : _loops) {
+            total += loop.getIdleTimeouts();
+        }
+        return total;
+    }
+
+    public long getConnectRetries() {
+        long total = 0;
+        for (RemoteSocketHandler loop : _loops) {
+            total += loop.getConnectRetries();
+        }
+        return total;
+    }
+
+    public long getConnectFailures() {
+        long total = 0;
+        for (RemoteSocketHandler loop : _loops) {
+            total += loop.getConnectFailures();
+        }
+        return total;
+    }
+
+    public long getCircuitRejects() {
+        long total = 0;
+        for (RemoteSocketHandler loop : _loops) {
+            total += loop.getCircuitRejects();
+        }
+        return total;
+    }
+
+    public long getPendingWriteBytes() {
+        long total = 0;
+        for (RemoteSocketHandler loop : _loops) {
+            total += loop.getPendingWriteBytes();
+        }
+        return total;
+    }
+
+    public int getPendingWriteQueues() {
+        int total = 0;
+        for (RemoteSocketHandler loop : _loops) {
+            total += loop.getPendingWriteQueues();
+        }
+        return total;
+    }
+
+    public int getPipeQueueSize() {
+        int total = 0;
+        for (RemoteSocketHandler loop : _loops) {
+            total += loop.getPipeQueueSize();
+        }
+        return total;
+    }
+
+    public int size() {
+        return _loops.length;
+    }
+
+    public int getCryptoThreads() {
+        return _cryptoThreads;
+    }
+
+    public void close() {
+        for (RemoteSocketHandler loop : _loops) {
+            loop.close();
+        }
+        _executor.shutdownNow();
+        if (_resolver != null) {
+            _resolver.shutdownNow();
+        }
+        if (_cryptoExecutor != null) {
+            _cryptoExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network.nio;
+
+/**
+ * Hashed timing wheel owned by a selector thread, scheduling and cancellation are O(1).
+ * Not thread safe, all methods must be called by the owner thread.
+ */
+public class HashedTimingWheel {
+    private final long _tickMillis;
+    private final Timeout[] _wheel;
+    private final int _mask;
+    private final long _startMillis;
+    private long _currentTick;
+    private long _currentMillis;
+    private int _size;
+
+    public HashedTimingWheel(long tickMillis, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        _tickMillis = Math.max(tickMillis, 1);
+        _wheel = new Timeout[size];
+        _mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            // sentinel of a circular list
+            Timeout head = new Timeout(this, null, 0);
+            head.prev = head;
+            head.next = head;
+            _wheel[i] = head;
+        }
+        _startMillis = System.nanoTime() / 1000000;
+        _currentMillis = _startMillis;
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long now = System.nanoTime() / 1000000;
+        long deadlineTick = (now - _startMillis + Math.max(delayMillis, 0) + _tickMillis - 1) / _tickMillis;
+        if (deadlineTick <= _currentTick) {
+            deadlineTick = _currentTick + 1;
+        }
+
+        Timeout timeout = new Timeout(this, task, deadlineTick);
+        Timeout head = _wheel[(int) (deadlineTick & _mask)];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+        _size++;
+        return timeout;
+    }
+
+    /**
+     * Run all expired tasks
+     */
+    public void advance() {
+        _currentMillis = System.nanoTime() / 1000000;
+        long nowTick = (_currentMillis - _startMillis) / _tickMillis;
+        long lastTick = _currentTick;
+        if (nowTick <= lastTick) {
+            return;
+        }
+        // tasks scheduled by expired tasks go to later ticks
+        _currentTick = nowTick;
+
+        long ticks = Math.min(nowTick - lastTick, _wheel.length);
+        for (long i = 1; i <= ticks; i++) {
+            Timeout head = _wheel[(int) ((lastTick + i) & _mask)];
+            Timeout timeout = head.next;
+            while (timeout != head) {
+                Timeout next = timeout.next;
+                // entries of later rounds stay in the bucket
+                if (timeout.deadlineTick <= nowTick) {
+                    timeout.unlink();
+                    timeout.task.run();
+                    if (next != head && !next.isPending()) {
+                        // task cancelled the next entry, start over
+                        next = head.next;
+                    }
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Timeout for select, 0 means waiting without timeout
+     */
+    public long getSelectTimeout() {
+        return (_size == 0) ? 0 : _tickMillis;
+    }
+
+    /**
+     * Time of the last advance, cheap enough to be used for activity tracking
+     */
+    public long currentMillis() {
+        return _currentMillis;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public static class Timeout {
+        private final HashedTimingWheel _owner;
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(HashedTimingWheel owner, Runnable task, long deadlineTick) {
+            _owner = owner;
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public void cancel() {
+            unlink();
+        }
+
+        public boolean isPending() {
+            return (next != null);
+        }
+
+        private void unlink() {
+            if (next == null) {
+                return;
+            }
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+            _owner._size--;
+        }
+    }
+}
@@ -31,10 +31,15 @@
 
 package com.stfl.network.nio;
 
+import java.nio.channels.SocketChannel;
+
 /**
  * Interface of socket handler
  */
 public interface ISocketHandler {
     void send(ChangeRequest request, byte[] data);
+    void send(ChangeRequest request, PooledBuffer data);
     void send(ChangeRequest request);
+    void write(SocketChannel socketChannel, PooledBuffer data);
+    void releaseWrite(SocketChannel socketChannel, long bytes);
 }
@@ -35,13 +35,20 @@ package com.stfl.network.nio;
  * pipe event for pipe worker
  */
 public class PipeEvent {
-    public byte[] data;
+    public PooledBuffer data;
     public boolean isEncrypted;
+    // bytes counted against the write queue of the destination until processed
+    public int reserved;
 
     public PipeEvent() {}
 
-    public PipeEvent(byte[] data, boolean isEncrypted) {
+    public PipeEvent(PooledBuffer data, boolean isEncrypted) {
+        this(data, isEncrypted, 0);
+    }
+
+    public PipeEvent(PooledBuffer data, boolean isEncrypted, int reserved) {
         this.data = data;
         this.isEncrypted = isEncrypted;
+        this.reserved = reserved;
     }
 }
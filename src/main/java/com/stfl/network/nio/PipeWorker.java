@@ -33,51 +33,143 @@ package com.stfl.network.nio;
 
 import com.stfl.misc.Config;
 import com.stfl.misc.Util;
-import com.stfl.Constant;
+import com.stfl.network.ConnectionTimer;
 import com.stfl.network.proxy.IProxy;
 import com.stfl.network.proxy.ProxyFactory;
 import com.stfl.ss.CryptFactory;
 import com.stfl.ss.ICrypt;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.channels.SelectionKey;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
-
+/**
+ * Non-blocking pipe between local and remote socket, events are processed either inline
+ * on the caller (selector loop) or on the crypto executor, one batch at a time per pipe.
+ * On the server side the local socket is the ss client and the remote socket is the target
+ */
 public class PipeWorker implements Runnable {
+    // type (1 byte) + length (1 byte) + domain (255 bytes) + port (2 bytes)
+    private static final int MAX_HEADER_LENGTH = 259;
+
     private Logger logger = Logger.getLogger(PipeWorker.class.getName());
     private SocketChannel _localChannel;
-    private SocketChannel _remoteChannel;
+    private volatile SocketChannel _remoteChannel;
     private ISocketHandler _localSocketHandler;
     private ISocketHandler _remoteSocketHandler;
     private IProxy _proxy;
     private ICrypt _crypt;
     public String socketInfo;
-    private ByteArrayOutputStream _outStream;
-    private BlockingQueue _processQueue;
+    private BufferPool _bufferPool;
+    private Queue<PipeEvent> _processQueue;
+    private Executor _executor;
+    private final AtomicBoolean _scheduled;
     private volatile boolean requestedClose;
+    private volatile boolean _handshakeDone;
+    // timeouts and activity, accessed by selector thread only
+    HashedTimingWheel.Timeout connectTimeout;
+    HashedTimingWheel.Timeout handshakeTimeout;
+    HashedTimingWheel.Timeout idleTimeout;
+    long lastActivity;
+    // upstream connect state, accessed by selector thread only
+    InetSocketAddress upstream;
+    CircuitBreaker breaker;
+    ConnectionTimer timer;
+    int connectAttempts;
+    List<SocketChannel> failedChannels;
+    private boolean _closed;
+    private boolean _failed;
+    private final boolean _isServer;
+    // decrypted address header received so far, server side only
+    private byte[] _header;
+    private int _headerLength;
 
     public PipeWorker(ISocketHandler localHandler, SocketChannel localChannel, ISocketHandler remoteHandler, SocketChannel remoteChannel, Config config) {
+        this(localHandler, localChannel, remoteHandler, remoteChannel, config, null);
+    }
+
+    public PipeWorker(ISocketHandler localHandler, SocketChannel localChannel, ISocketHandler remoteHandler, SocketChannel remoteChannel, Config config, Executor executor) {
+        this(localHandler, localChannel, remoteHandler, remoteChannel, config, executor, false);
+    }
+
+    public PipeWorker(ISocketHandler localHandler, SocketChannel localChannel, ISocketHandler remoteHandler, SocketChannel remoteChannel, Config config, Executor executor, boolean isServer) {
+        _isServer = isServer;
         _localChannel = localChannel;
         _remoteChannel = remoteChannel;
         _localSocketHandler = localHandler;
         _remoteSocketHandler = remoteHandler;
         _crypt = CryptFactory.get(config.getMethod(), config.getPassword());
-        _proxy = ProxyFactory.get(config.getProxyType());
-        _outStream = new ByteArrayOutputStream(Constant.BUFFER_SIZE);
-        _processQueue = new LinkedBlockingQueue();
+        // server side talks ss to the local socket, no proxy protocol
+        _proxy = isServer ? null : ProxyFactory.get(config.getProxyType());
+        _bufferPool = BufferPool.getInstance();
+        _processQueue = new ConcurrentLinkedQueue<>();
+        _executor = executor;
+        _scheduled = new AtomicBoolean(false);
         requestedClose = false;
         socketInfo = String.format("Local: %s, Remote: %s", localChannel, remoteChannel);
     }
 
+    public boolean isLocalChannel(SocketChannel channel) {
+        return (channel == _localChannel);
+    }
+
+    public boolean isServer() {
+        return _isServer;
+    }
+
+    public SocketChannel getPeerChannel(SocketChannel channel) {
+        return (channel == _localChannel) ? _remoteChannel : _localChannel;
+    }
+
+    /**
+     * Replace remote socket after a failed connect, data queued for the old one is kept
+     */
+    public void setRemoteChannel(SocketChannel remoteChannel) {
+        _remoteChannel = remoteChannel;
+        socketInfo = String.format("Local: %s, Remote: %s", _localChannel, remoteChannel);
+    }
+
+    public SocketChannel getRemoteChannel() {
+        return _remoteChannel;
+    }
+
+    public boolean isHandshakeDone() {
+        return _handshakeDone;
+    }
+
+    public SocketChannel getLocalChannel() {
+        return _localChannel;
+    }
+
+    /**
+     * Events waiting to be encrypted or decrypted
+     */
+    public int getQueueSize() {
+        return _processQueue.size();
+    }
+
+    void cancelTimeouts() {
+        if (connectTimeout != null) {
+            connectTimeout.cancel();
+        }
+        if (handshakeTimeout != null) {
+            handshakeTimeout.cancel();
+        }
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+        }
+    }
+
     public void close() {
         requestedClose = true;
-        processData(null, 0, false);
+        schedule();
     }
 
     public void forceClose() {
@@ -99,90 +191,238 @@ public class PipeWorker implements Runnable {
         close();
     }
 
-    public void processData(byte[] data, int count, boolean isEncrypted) {
-        if (data != null) {
-            byte[] dataCopy = new byte[count];
-            System.arraycopy(data, 0, dataCopy, 0, count);
-            _processQueue.add(new PipeEvent(dataCopy, isEncrypted));
+    public void processData(PooledBuffer data, boolean isEncrypted) {
+        processData(data, isEncrypted, 0);
+    }
+
+    /**
+     * Queue data for processing, reserved bytes have been counted against the write queue of
+     * the destination socket and are released once the data is handed over or dropped
+     */
+    public void processData(PooledBuffer data, boolean isEncrypted, int reserved) {
+        _processQueue.add(new PipeEvent(data, isEncrypted, reserved));
+        schedule();
+    }
+
+    private void schedule() {
+        if (!_scheduled.compareAndSet(false, true)) {
+            // the running batch will pick the new event up
+            return;
+        }
+
+        if (_executor == null) {
+            run();
         }
         else {
-            _processQueue.add(new PipeEvent());
+            _executor.execute(this);
         }
     }
 
     @Override
     public void run() {
-        PipeEvent event;
-        ISocketHandler socketHandler;
-        SocketChannel channel;
-        List<byte[]> sendData = null;
+        while (true) {
+            PipeEvent event;
+            while ((event = _processQueue.poll()) != null) {
+                process(event);
+                if (event.reserved > 0) {
+                    release(event);
+                }
+            }
 
-        while(true) {
             // make sure all the requests in the queue are processed
-            if (_processQueue.isEmpty() && requestedClose) {
-                logger.fine("PipeWorker closed ("+  _processQueue.size() + "): " + this.socketInfo);
+            if (requestedClose && !_closed) {
+                _closed = true;
+                // events after this point are dropped, keyed ciphers could be reused
+                _crypt.release();
+                logger.fine("PipeWorker closed: " + this.socketInfo);
                 if (_localChannel.isOpen()) {
                     _localSocketHandler.send(new ChangeRequest(_localChannel, ChangeRequest.CLOSE_CHANNEL));
                 }
                 if (_remoteChannel.isOpen()) {
                     _remoteSocketHandler.send(new ChangeRequest(_remoteChannel, ChangeRequest.CLOSE_CHANNEL));
                 }
+            }
+
+            _scheduled.set(false);
+            // an event might be queued between the last poll and releasing the flag
+            if (_processQueue.isEmpty() || !_scheduled.compareAndSet(false, true)) {
                 break;
             }
+        }
+    }
+
+    private void release(PipeEvent event) {
+        // same direction as send()
+        if (event.isEncrypted != _isServer) {
+            _remoteSocketHandler.releaseWrite(_remoteChannel, event.reserved);
+        }
+        else {
+            _localSocketHandler.releaseWrite(_localChannel, event.reserved);
+        }
+    }
+
+    private void process(PipeEvent event) {
+        if (_closed || _failed) {
+            event.data.release();
+            return;
+        }
 
+        // wait for address header of ss request
+        if (_isServer && !_handshakeDone) {
+            processHeader(event);
+            return;
+        }
+
+        // process proxy packet if needed
+        if (!_isServer && !_proxy.isReady()) {
+            ByteBuffer data = event.data.buffer();
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            event.data.release();
+
+            // packet for local socket
+            byte[] temp = _proxy.getResponse(bytes);
+            if (temp != null) {
+                _localSocketHandler.write(_localChannel, _bufferPool.wrap(temp, 0, temp.length));
+            }
+            // packet for remote socket (ss payload + request)
+            List<byte[]> sendData = _proxy.getRemoteResponse(bytes);
+            if (sendData == null) {
+                return;
+            }
+            _handshakeDone = true;
+            timer.handshakeDone();
+            // index 0 is always ss payload
+            logger.info("Connected to: " + Util.getRequestedHostInfo(sendData.get(0)));
+
+            for (byte[] b : sendData) {
+                send(_bufferPool.wrap(b, 0, b.length), event.isEncrypted);
+            }
+            return;
+        }
+
+        send(event.data, event.isEncrypted);
+    }
+
+    /**
+     * Collect decrypted address header from the ss client, then ask the remote handler to
+     * connect to the target, payload behind the header waits in the write queue of the target
+     */
+    private void processHeader(PipeEvent event) {
+        PooledBuffer plain = crypt(event.data, event.isEncrypted);
+        if (plain == null) {
+            return;
+        }
+
+        if (_header == null) {
+            _header = new byte[MAX_HEADER_LENGTH];
+        }
+        ByteBuffer data = plain.buffer();
+        int n = Math.min(data.remaining(), _header.length - _headerLength);
+        data.get(_header, _headerLength, n);
+        _headerLength += n;
+
+        int length = Util.getRequestedHostLength(_header, _headerLength);
+        if (length < 0) {
+            // header is split into several packets
+            plain.release();
+            return;
+        }
+
+        InetSocketAddress target = null;
+        if (length > 0) {
             try {
-                event = (PipeEvent)_processQueue.take();
+                target = Util.getRequestedAddress(_header);
+            } catch (IOException e) {
+                logger.fine(e.toString());
+            }
+        }
+        if (target == null) {
+            // wrong password or cipher ends up here too
+            logger.warning("Invalid ss header: " + socketInfo);
+            plain.release();
+            _failed = true;
+            close();
+            return;
+        }
 
-                // if event data is null, it means this is a wake-up call
-                // to check if any other thread is requested to close sockets
-                if (event.data == null) {
-                    continue;
-                }
+        _handshakeDone = true;
+        timer.handshakeDone();
+        logger.info("Connecting to: " + Util.getRequestedHostInfo(_header));
 
-                // process proxy packet if needed
-                if (!_proxy.isReady()) {
-                    // packet for local socket
-                    byte[] temp = _proxy.getResponse(event.data);
-                    if (temp != null) {
-                        _localSocketHandler.send(new ChangeRequest(_localChannel, ChangeRequest.CHANGE_SOCKET_OP,
-                                SelectionKey.OP_WRITE), temp);
-                    }
-                    // packet for remote socket (ss payload + request)
-                    sendData = _proxy.getRemoteResponse(event.data);
-                    if (sendData == null) {
-                        continue;
-                    }
-                    // index 0 is always ss payload
-                    logger.info("Connected to: " + Util.getRequestedHostInfo(sendData.get(0)));
-                    //logger.info("Test: " + Util.bytesToString(temp, 0, temp.length));
-                }
-                else {
-                    sendData.clear();
-                    sendData.add(event.data);
-                }
+        // payload which came along with the header
+        if (_headerLength > length) {
+            _remoteSocketHandler.write(_remoteChannel, _bufferPool.wrap(_header, length, _headerLength - length));
+        }
+        if (data.hasRemaining()) {
+            _remoteSocketHandler.write(_remoteChannel, plain);
+        }
+        else {
+            plain.release();
+        }
+        _header = null;
 
-                for (byte[] bytes : sendData) {
-                    // empty stream for new data
-                    _outStream.reset();
-
-                    if (event.isEncrypted) {
-                        _crypt.encrypt(bytes, _outStream);
-                        channel = _remoteChannel;
-                        socketHandler = _remoteSocketHandler;
-                    } else {
-                        _crypt.decrypt(bytes, _outStream);
-                        channel = _localChannel;
-                        socketHandler = _localSocketHandler;
-                    }
-
-                    // data is ready to send to socket
-                    ChangeRequest request = new ChangeRequest(channel, ChangeRequest.CHANGE_SOCKET_OP, SelectionKey.OP_WRITE);
-                    socketHandler.send(request, _outStream.toByteArray());
-                }
-            } catch (InterruptedException e) {
-                logger.fine(Util.getErrorMessage(e));
-                break;
+        _remoteSocketHandler.send(new ChangeRequest(_remoteChannel, ChangeRequest.CONNECT_CHANNEL, target));
+    }
+
+    private void send(PooledBuffer data, boolean isEncrypted) {
+        PooledBuffer out = crypt(data, isEncrypted);
+        if (out == null) {
+            return;
+        }
+
+        // client sends encrypted data to ss server, server sends it to ss client
+        if (isEncrypted != _isServer) {
+            _remoteSocketHandler.write(_remoteChannel, out);
+        }
+        else {
+            _localSocketHandler.write(_localChannel, out);
+        }
+    }
+
+    /**
+     * Encrypt or decrypt data, null if there is nothing to send or pipe failed
+     */
+    private PooledBuffer crypt(PooledBuffer data, boolean isEncrypted) {
+        ByteBuffer src = data.buffer();
+        int outputSize = _crypt.getOutputSize(src.remaining(), isEncrypted);
+        PooledBuffer out = data;
+
+        // crypt in place unless output does not fit, e.g. IV is prepended to the first packet
+        ByteBuffer dst = src;
+        if (outputSize > src.capacity() - src.position()) {
+            out = _bufferPool.lease(outputSize);
+            dst = out.buffer();
+        }
+
+        try {
+            if (isEncrypted) {
+                _crypt.encrypt(src, dst);
+            } else {
+                _crypt.decrypt(src, dst);
             }
+        } catch (IllegalStateException e) {
+            // e.g. AEAD chunk failed authentication, nothing more could be trusted
+            logger.warning(e.getMessage() + ": " + socketInfo);
+            if (out != data) {
+                out.release();
+            }
+            data.release();
+            _failed = true;
+            close();
+            return null;
+        }
+
+        if (out != data) {
+            data.release();
+            dst.flip();
         }
+        if (!dst.hasRemaining()) {
+            // e.g. packet contains IV only
+            out.release();
+            return null;
+        }
+
+        return out;
     }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted buffer leased from {@link BufferPool}
+ */
+public class PooledBuffer {
+    private final BufferPool _pool;
+    private final ByteBuffer _buffer;
+    private final int _sizeClass;
+    private final AtomicInteger _refCnt;
+    BufferPool.LeakRecord leakRecord;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+        _pool = pool;
+        _buffer = buffer;
+        _sizeClass = sizeClass;
+        _refCnt = new AtomicInteger(1);
+    }
+
+    public ByteBuffer buffer() {
+        return _buffer;
+    }
+
+    int sizeClass() {
+        return _sizeClass;
+    }
+
+    public int refCnt() {
+        return _refCnt.get();
+    }
+
+    public PooledBuffer retain() {
+        int cnt;
+        do {
+            cnt = _refCnt.get();
+            if (cnt <= 0) {
+                throw new IllegalStateException("PooledBuffer already released");
+            }
+        } while (!_refCnt.compareAndSet(cnt, cnt + 1));
+        return this;
+    }
+
+    public boolean release() {
+        int cnt = _refCnt.decrementAndGet();
+        if (cnt == 0) {
+            _pool.recycle(this);
+            return true;
+        }
+        if (cnt < 0) {
+            throw new IllegalStateException("PooledBuffer released too many times");
+        }
+        return false;
+    }
+}
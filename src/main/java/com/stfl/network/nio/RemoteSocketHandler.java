@@ -31,8 +31,11 @@
 
 package com.stfl.network.nio;
 
+import com.stfl.Constant;
 import com.stfl.misc.Config;
 import com.stfl.misc.Util;
+import com.stfl.network.ConnectionTimer;
+import com.stfl.network.ServerStats;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -43,17 +46,47 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.security.InvalidAlgorithmParameterException;
-import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
- * Handler for processing all IO event for remote sockets
+ * Handler for processing all IO event for local sockets and their paired remote sockets,
+ * a connection pair is always served by the same handler, either ss client to ss server
+ * or ss server to target
  */
 public class RemoteSocketHandler extends SocketHandlerBase {
     private Logger logger = Logger.getLogger(RemoteSocketHandler.class.getName());
 
+    private Executor _cryptoExecutor;
+    private Executor _resolver;
+    private final AtomicLong _connectTimeouts = new AtomicLong();
+    private final AtomicLong _handshakeTimeouts = new AtomicLong();
+    private final AtomicLong _idleTimeouts = new AtomicLong();
+    private final AtomicLong _connectRetries = new AtomicLong();
+    private final AtomicLong _connectFailures = new AtomicLong();
+    private final AtomicLong _circuitRejects = new AtomicLong();
+
     public RemoteSocketHandler(Config config) throws IOException, InvalidAlgorithmParameterException {
+        this(config, null);
+    }
+
+    public RemoteSocketHandler(Config config, Executor cryptoExecutor) throws IOException, InvalidAlgorithmParameterException {
+        this(config, cryptoExecutor, null);
+    }
+
+    public RemoteSocketHandler(Config config, Executor cryptoExecutor, Executor resolver) throws IOException, InvalidAlgorithmParameterException {
+        this(config, cryptoExecutor, resolver, new ServerStats());
+    }
+
+    public RemoteSocketHandler(Config config, Executor cryptoExecutor, Executor resolver, ServerStats stats) throws IOException, InvalidAlgorithmParameterException {
         super(config);
+        _cryptoExecutor = cryptoExecutor;
+        _resolver = resolver;
+        _stats = stats;
     }
 
     @Override
@@ -63,16 +96,16 @@ public class RemoteSocketHandler extends SocketHandlerBase {
 
     @Override
     protected boolean processPendingRequest(ChangeRequest request) {
-        if ((request.type != ChangeRequest.REGISTER_CHANNEL) && request.socket.isConnectionPending()) {
-            return false;
-        }
-
         SelectionKey key;
         switch (request.type) {
             case ChangeRequest.CHANGE_SOCKET_OP:
+                if (request.socket.isConnectionPending()) {
+                    // interest ops are set once connected
+                    break;
+                }
                 key = request.socket.keyFor(_selector);
                 if ((key != null) && key.isValid()) {
-                    key.interestOps(request.op);
+                    key.interestOps(key.interestOps() | request.op);
                 } else {
                     logger.warning("RemoteSocketHandler::processPendingRequest (drop): " + key + request.socket);
                 }
@@ -80,15 +113,25 @@ public class RemoteSocketHandler extends SocketHandlerBase {
             case ChangeRequest.REGISTER_CHANNEL:
                 try {
                     request.socket.register(_selector, request.op);
+                    scheduleTimeouts(request.socket);
                 } catch (ClosedChannelException e) {
                     // socket get closed by remote
                     logger.warning(e.toString());
                     cleanUp(request.socket);
                 }
                 break;
+            case ChangeRequest.SUSPEND_READ:
+                suspendPeerRead(request.socket);
+                break;
+            case ChangeRequest.RESUME_READ:
+                resumePeerRead(request.socket);
+                break;
             case ChangeRequest.CLOSE_CHANNEL:
                 cleanUp(request.socket);
                 break;
+            case ChangeRequest.CONNECT_CHANNEL:
+                connect(request.socket, request.address);
+                break;
         }
 
         return true;
@@ -99,9 +142,12 @@ public class RemoteSocketHandler extends SocketHandlerBase {
         try {
             if (key.isConnectable()) {
                 finishConnection(key);
-            } else if (key.isReadable()) {
+                return;
+            }
+            if (key.isReadable()) {
                 read(key);
-            } else if (key.isWritable()) {
+            }
+            if (key.isValid() && key.isWritable()) {
                 write(key);
             }
         } catch (IOException e) {
@@ -109,29 +155,223 @@ public class RemoteSocketHandler extends SocketHandlerBase {
         }
     }
 
-    public PipeWorker createPipe(ISocketHandler localHandler, SocketChannel localChannel, String ipAddress, int port) throws IOException {
+    private void scheduleTimeouts(SocketChannel socketChannel) {
+        PipeWorker pipe = _pipes.get(socketChannel);
+        if (pipe == null) {
+            return;
+        }
+
+        if (!pipe.isLocalChannel(socketChannel)) {
+            scheduleConnectTimeout(pipe, socketChannel);
+            return;
+        }
+
+        pipe.lastActivity = _timer.currentMillis();
+        scheduleHandshakeTimeout(pipe);
+        scheduleIdleTimeout(pipe, _config.getIdleTimeout());
+    }
+
+    private void scheduleConnectTimeout(final PipeWorker pipe, final SocketChannel socketChannel) {
+        if (_config.getConnectTimeout() <= 0) {
+            return;
+        }
+        pipe.connectTimeout = _timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (socketChannel.isOpen() && !socketChannel.isConnected()) {
+                    _connectTimeouts.incrementAndGet();
+                    logger.info("Connect timeout: " + pipe.socketInfo);
+                    connectFailed(socketChannel);
+                }
+            }
+        }, _config.getConnectTimeout());
+    }
+
+    private void scheduleHandshakeTimeout(final PipeWorker pipe) {
+        if (_config.getHandshakeTimeout() <= 0) {
+            return;
+        }
+        pipe.handshakeTimeout = _timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!pipe.isHandshakeDone()) {
+                    _handshakeTimeouts.incrementAndGet();
+                    logger.info("Handshake timeout: " + pipe.socketInfo);
+                    cleanUp(pipe.getLocalChannel());
+                }
+            }
+        }, _config.getHandshakeTimeout());
+    }
+
+    private void scheduleIdleTimeout(final PipeWorker pipe, long delay) {
+        if (_config.getIdleTimeout() <= 0) {
+            return;
+        }
+        pipe.idleTimeout = _timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long idle = _timer.currentMillis() - pipe.lastActivity;
+                if (idle >= _config.getIdleTimeout()) {
+                    _idleTimeouts.incrementAndGet();
+                    logger.fine("Idle timeout: " + pipe.socketInfo);
+                    cleanUp(pipe.getLocalChannel());
+                }
+                else {
+                    // there was traffic, check again when it could expire
+                    scheduleIdleTimeout(pipe, _config.getIdleTimeout() - idle);
+                }
+            }
+        }, delay);
+    }
+
+    public long getConnectTimeouts() {
+        return _connectTimeouts.get();
+    }
+
+    public long getHandshakeTimeouts() {
+        return _handshakeTimeouts.get();
+    }
+
+    public long getIdleTimeouts() {
+        return _idleTimeouts.get();
+    }
+
+    public long getConnectRetries() {
+        return _connectRetries.get();
+    }
+
+    public long getConnectFailures() {
+        return _connectFailures.get();
+    }
+
+    public long getCircuitRejects() {
+        return _circuitRejects.get();
+    }
+
+    /**
+     * Events waiting in the pipes of this handler
+     */
+    public int getPipeQueueSize() {
+        int total = 0;
+        for (Map.Entry<SocketChannel, PipeWorker> entry : _pipes.entrySet()) {
+            // every pipe is kept under both of its sockets
+            if (entry.getValue().isLocalChannel(entry.getKey())) {
+                total += entry.getValue().getQueueSize();
+            }
+        }
+        return total;
+    }
+
+    public PipeWorker createPipe(SocketChannel localChannel, String ipAddress, int port) throws IOException {
+        InetSocketAddress upstream = new InetSocketAddress(ipAddress, port);
+        CircuitBreaker breaker = CircuitBreaker.forUpstream(upstream, _config);
+        if (!breaker.allowRequest()) {
+            // upstream keeps failing, don't pile up connects on it
+            _circuitRejects.incrementAndGet();
+            logger.fine("Circuit open, rejecting: " + localChannel);
+            localChannel.close();
+            return null;
+        }
+
         // prepare remote socket
         SocketChannel socketChannel = SocketChannel.open();
         socketChannel.configureBlocking(false);
-        socketChannel.connect(new InetSocketAddress(ipAddress, port));
+        socketChannel.connect(upstream);
 
-        // create write buffer for specified socket
+        // create write buffer for both sockets, they are served by this handler only
+        createWriteBuffer(localChannel);
         createWriteBuffer(socketChannel);
 
         // create pipe worker for handling encrypt and decrypt
-        PipeWorker pipe = new PipeWorker(localHandler, localChannel, this, socketChannel, _config);
+        PipeWorker pipe = new PipeWorker(this, localChannel, this, socketChannel, _config, _cryptoExecutor);
+        pipe.upstream = upstream;
+        pipe.breaker = breaker;
+        pipe.timer = new ConnectionTimer(_stats);
 
         // setup pipe info
-        //pipe.setRemoteChannel(socketChannel);
+        _pipes.put(localChannel, pipe);
         _pipes.put(socketChannel, pipe);
 
-        synchronized(_pendingRequest) {
-            _pendingRequest.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER_CHANNEL, SelectionKey.OP_CONNECT));
-        }
+        addRequest(new ChangeRequest(localChannel, ChangeRequest.REGISTER_CHANNEL, SelectionKey.OP_READ));
+        addRequest(new ChangeRequest(socketChannel, ChangeRequest.REGISTER_CHANNEL, SelectionKey.OP_CONNECT));
+
+        return pipe;
+    }
+
+    /**
+     * Pipe for a ss client, target socket is connected once the pipe has the address header
+     */
+    public PipeWorker createServerPipe(SocketChannel localChannel) throws IOException {
+        // prepare target socket, data for it is queued until connected
+        SocketChannel socketChannel = SocketChannel.open();
+        socketChannel.configureBlocking(false);
+
+        createWriteBuffer(localChannel);
+        createWriteBuffer(socketChannel);
+
+        PipeWorker pipe = new PipeWorker(this, localChannel, this, socketChannel, _config, _cryptoExecutor, true);
+        pipe.timer = new ConnectionTimer(_stats);
+        _pipes.put(localChannel, pipe);
+        _pipes.put(socketChannel, pipe);
+
+        addRequest(new ChangeRequest(localChannel, ChangeRequest.REGISTER_CHANNEL, SelectionKey.OP_READ));
 
         return pipe;
     }
 
+    /**
+     * Connect target socket of a server pipe, domain names are resolved on the resolver
+     * since lookups block
+     */
+    private void connect(final SocketChannel socketChannel, final InetSocketAddress address) {
+        PipeWorker pipe = _pipes.get(socketChannel);
+        if ((pipe == null) || !socketChannel.isOpen()) {
+            // closed while resolving
+            return;
+        }
+
+        if (address.isUnresolved()) {
+            if (_resolver == null) {
+                logger.warning("No resolver for: " + address);
+                cleanUp(socketChannel);
+                return;
+            }
+            try {
+                _resolver.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        InetSocketAddress resolved = new InetSocketAddress(address.getHostString(), address.getPort());
+                        if (resolved.isUnresolved()) {
+                            _connectFailures.incrementAndGet();
+                            logger.info("Unable to resolve: " + address.getHostString());
+                            addRequest(new ChangeRequest(socketChannel, ChangeRequest.CLOSE_CHANNEL));
+                            return;
+                        }
+                        addRequest(new ChangeRequest(socketChannel, ChangeRequest.CONNECT_CHANNEL, resolved));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // too many lookups pending
+                _connectFailures.incrementAndGet();
+                logger.warning("Resolver busy, dropping: " + address.getHostString());
+                cleanUp(socketChannel);
+            }
+            return;
+        }
+
+        // targets are too many to keep a breaker for each of them, retries are still made
+        pipe.upstream = address;
+        try {
+            socketChannel.connect(address);
+            socketChannel.register(_selector, SelectionKey.OP_CONNECT);
+        } catch (IOException e) {
+            logger.warning("RemoteSocketHandler::connect I/O exception: " + e.toString());
+            connectFailed(socketChannel);
+            return;
+        }
+        scheduleConnectTimeout(pipe, socketChannel);
+    }
+
     private void read(SelectionKey key) throws IOException {
         SocketChannel socketChannel = (SocketChannel) key.channel();
         PipeWorker pipe = _pipes.get(socketChannel);
@@ -141,68 +381,175 @@ public class RemoteSocketHandler extends SocketHandlerBase {
             return;
         }
 
-        // clear read buffer for new data
-        _readBuffer.clear();
+        // lease buffer for new data, it is handed over to the pipe
+        PooledBuffer buffer = _bufferPool.lease(Constant.BUFFER_SIZE);
+        ByteBuffer readBuffer = buffer.buffer();
+        readBuffer.limit(Constant.BUFFER_SIZE);
 
         // read data
         int readCount;
         try {
-            readCount = socketChannel.read(_readBuffer);
+            readCount = socketChannel.read(readBuffer);
         } catch (IOException e) {
-            // remote socket closed
+            // socket closed by peer
+            buffer.release();
             cleanUp(socketChannel);
 
             return;
         }
 
-        if (readCount == -1) {
-            cleanUp(socketChannel);
+        if (readCount <= 0) {
+            buffer.release();
+            if (readCount == -1) {
+                cleanUp(socketChannel);
+            }
             return;
         }
 
-        // Handle the response
-        pipe.processData(_readBuffer.array(), readCount, false);
+        pipe.lastActivity = _timer.currentMillis();
+        _stats.addBytes(pipe.isLocalChannel(socketChannel), true, readCount);
+        if (!pipe.isLocalChannel(socketChannel)) {
+            pipe.timer.firstByte();
+        }
+
+        // data is counted against the peer's watermarks from now on, not only once it is queued
+        SocketChannel peer = pipe.getPeerChannel(socketChannel);
+        reserveWrite(peer, readCount);
+
+        // client encrypts data from local socket and decrypts data from remote socket, server does the opposite
+        readBuffer.flip();
+        pipe.processData(buffer, pipe.isLocalChannel(socketChannel) != pipe.isServer(), readCount);
     }
 
-    private void write(SelectionKey key) throws IOException {
+    private void finishConnection(SelectionKey key) throws IOException {
         SocketChannel socketChannel = (SocketChannel) key.channel();
 
-        List queue = (List) _pendingData.get(socketChannel);
-        if (queue != null) {
-            synchronized (queue) {
-                // write data to socket
-                while (!queue.isEmpty()) {
-                    ByteBuffer buf = (ByteBuffer) queue.get(0);
-                    socketChannel.write(buf);
-                    if (buf.remaining() > 0) {
-                        break;
-                    }
-                    queue.remove(0);
-                }
+        try {
+            socketChannel.finishConnect();
+        } catch (IOException e) {
+            logger.warning("RemoteSocketHandler::finishConnection I/O exception: " + e.toString());
+            connectFailed(socketChannel);
+            return;
+        }
 
-                if (queue.isEmpty()) {
-                    key.interestOps(SelectionKey.OP_READ);
-                }
+        PipeWorker pipe = _pipes.get(socketChannel);
+        if (pipe != null) {
+            if (pipe.connectTimeout != null) {
+                pipe.connectTimeout.cancel();
+            }
+            if (pipe.breaker != null) {
+                pipe.breaker.onSuccess();
             }
+            pipe.timer.upstreamConnected();
+            dropFailedChannels(pipe, false);
         }
-        else {
-            logger.warning("RemoteSocket::write queue = null: " + socketChannel);
+        key.interestOps(getInterestOps(socketChannel));
+    }
+
+    /**
+     * Connect to upstream failed, retry with backoff while keeping the first flight
+     * already queued for it, or give up the pipe
+     */
+    private void connectFailed(SocketChannel socketChannel) {
+        PipeWorker pipe = _pipes.get(socketChannel);
+        if (pipe == null) {
+            cleanUp(socketChannel);
+            return;
+        }
+        if (pipe.breaker != null) {
+            pipe.breaker.onFailure();
+        }
+
+        if ((pipe.connectAttempts >= _config.getConnectRetries()) || ((pipe.breaker != null) && pipe.breaker.isOpen())
+                || !pipe.getLocalChannel().isOpen()) {
+            _connectFailures.incrementAndGet();
+            logger.info("Unable to connect: " + pipe.socketInfo);
+            cleanUp(socketChannel);
             return;
         }
+
+        // detach failed socket, its write queue stays reachable through the old channel
+        // until the pipe is connected, for writes racing with the replacement
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            logger.info(Util.getErrorMessage(e));
+        }
+        _pipes.remove(socketChannel);
+        if (pipe.failedChannels == null) {
+            pipe.failedChannels = new ArrayList<>();
+        }
+        pipe.failedChannels.add(socketChannel);
+
+        long delay = (long) _config.getConnectRetryDelay() << pipe.connectAttempts;
+        pipe.connectAttempts++;
+        _connectRetries.incrementAndGet();
+        logger.fine("Retry connect in " + delay + "ms: " + pipe.socketInfo);
+        scheduleReconnect(pipe, _pendingData.get(socketChannel), delay);
     }
 
-    private void finishConnection(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
+    private void scheduleReconnect(final PipeWorker pipe, final WriteQueue queue, long delay) {
+        pipe.connectTimeout = _timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reconnect(pipe, queue);
+            }
+        }, delay);
+    }
 
+    private void reconnect(PipeWorker pipe, WriteQueue queue) {
+        SocketChannel localChannel = pipe.getLocalChannel();
+        if (!localChannel.isOpen() || (queue == null)) {
+            // closed during backoff
+            return;
+        }
+        if ((pipe.breaker != null) && !pipe.breaker.allowRequest()) {
+            _circuitRejects.incrementAndGet();
+            _connectFailures.incrementAndGet();
+            cleanUp(localChannel);
+            return;
+        }
+
+        SocketChannel socketChannel;
         try {
-            socketChannel.finishConnect();
+            socketChannel = SocketChannel.open();
         } catch (IOException e) {
-            logger.warning("RemoteSocketHandler::finishConnection I/O exception: " + e.toString());
-            cleanUp(socketChannel);
+            logger.warning(Util.getErrorMessage(e));
+            cleanUp(localChannel);
+            return;
+        }
+        pipe.setRemoteChannel(socketChannel);
+        _pendingData.put(socketChannel, queue);
+        _pipes.put(socketChannel, pipe);
+
+        try {
+            socketChannel.configureBlocking(false);
+            socketChannel.connect(pipe.upstream);
+            socketChannel.register(_selector, SelectionKey.OP_CONNECT);
+        } catch (IOException e) {
+            logger.warning("RemoteSocketHandler::reconnect I/O exception: " + e.toString());
+            connectFailed(socketChannel);
             return;
         }
+        scheduleConnectTimeout(pipe, socketChannel);
+    }
 
-        key.interestOps(SelectionKey.OP_WRITE);
+    /**
+     * Forget the sockets of failed connects. Their queue is kept only when it was handed over to
+     * a connected socket, a pipe torn down during backoff still has the failed socket as remote
+     */
+    private void dropFailedChannels(PipeWorker pipe, boolean isClosing) {
+        if (pipe.failedChannels == null) {
+            return;
+        }
+        WriteQueue current = isClosing ? null : _pendingData.get(pipe.getRemoteChannel());
+        for (SocketChannel channel : pipe.failedChannels) {
+            WriteQueue queue = _pendingData.remove(channel);
+            if ((queue != null) && (queue != current)) {
+                queue.close();
+            }
+        }
+        pipe.failedChannels = null;
     }
 
     @Override
@@ -211,12 +558,17 @@ public class RemoteSocketHandler extends SocketHandlerBase {
 
         PipeWorker pipe = _pipes.get(socketChannel);
         if (pipe != null) {
+            pipe.cancelTimeouts();
+            dropFailedChannels(pipe, true);
             pipe.close();
             _pipes.remove(socketChannel);
-            logger.fine("RemoteSocket closed: " + pipe.socketInfo);
+            if (pipe.isLocalChannel(socketChannel)) {
+                _stats.connectionClosed();
+            }
+            logger.fine((pipe.isLocalChannel(socketChannel) ? "LocalSocket" : "RemoteSocket") + " closed: " + pipe.socketInfo);
         }
         else {
-            logger.fine("RemoteSocket closed (NULL): " + socketChannel);
+            logger.fine("Socket closed (NULL): " + socketChannel);
         }
     }
 }
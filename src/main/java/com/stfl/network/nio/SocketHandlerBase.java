@@ -33,12 +33,11 @@ package com.stfl.network.nio;
 
 import com.stfl.misc.Config;
 import com.stfl.misc.Util;
-import com.stfl.Constant;
 import com.stfl.network.IServer;
+import com.stfl.network.ServerStats;
 import com.stfl.ss.CryptFactory;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -47,19 +46,37 @@ import java.security.InvalidAlgorithmParameterException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
  * Base class of socket handler for processing all IO event for sockets
  */
 public abstract class SocketHandlerBase implements IServer, ISocketHandler {
+    private static final int TIMER_TICK = 100; // ms
+    private static final int TIMER_WHEEL_SIZE = 512;
+
     private Logger logger = Logger.getLogger(SocketHandlerBase.class.getName());
     protected Selector _selector;
     protected Config _config;
-    protected final List _pendingRequest = new LinkedList();
-    protected final ConcurrentHashMap _pendingData = new ConcurrentHashMap();
+    // requests from any thread, drained by selector thread into _pendingRequest
+    private final MpscQueue<ChangeRequest> _requestQueue = new MpscQueue<>();
+    // sockets got data since last select
+    private final MpscQueue<SocketChannel> _dirtyChannels = new MpscQueue<>();
+    protected final Deque<ChangeRequest> _pendingRequest = new ArrayDeque<>();
+    private final AtomicBoolean _wakenUp = new AtomicBoolean();
+    private final AtomicLong _wakeups = new AtomicLong();
+    private final AtomicLong _wakeupsSuppressed = new AtomicLong();
+    private volatile Thread _thread;
+    protected final HashedTimingWheel _timer = new HashedTimingWheel(TIMER_TICK, TIMER_WHEEL_SIZE);
+    protected final ConcurrentHashMap<SocketChannel, WriteQueue> _pendingData = new ConcurrentHashMap<>();
     protected ConcurrentMap<SocketChannel, PipeWorker> _pipes = new ConcurrentHashMap<>();
-    protected ByteBuffer _readBuffer = ByteBuffer.allocate(Constant.BUFFER_SIZE);
+    protected final BufferPool _bufferPool = BufferPool.getInstance();
+    protected final WriteStats _writeStats = new WriteStats();
+    protected ServerStats _stats = new ServerStats();
+    // sockets which should not be read until their peer drains, accessed by selector thread only
+    protected final Set<SocketChannel> _readSuspended = new HashSet<>();
 
     protected abstract Selector initSelector() throws IOException;
     protected abstract boolean processPendingRequest(ChangeRequest request);
@@ -76,20 +93,36 @@ public abstract class SocketHandlerBase implements IServer, ISocketHandler {
 
     @Override
     public void run() {
+        _thread = Thread.currentThread();
         while (true) {
             try {
-                synchronized (_pendingRequest) {
-                    Iterator changes = _pendingRequest.iterator();
-                    while (changes.hasNext()) {
-                        ChangeRequest change = (ChangeRequest) changes.next();
-                        if (!processPendingRequest(change))
-                            break;
-                        changes.remove();
-                    }
+                // requests queued from now on need a new wakeup
+                _wakenUp.set(false);
+
+                ChangeRequest request;
+                while ((request = _requestQueue.poll()) != null) {
+                    _pendingRequest.addLast(request);
+                }
+                Iterator<ChangeRequest> changes = _pendingRequest.iterator();
+                while (changes.hasNext()) {
+                    ChangeRequest change = changes.next();
+                    if (!processPendingRequest(change))
+                        break;
+                    changes.remove();
+                }
+                SocketChannel dirty;
+                while ((dirty = _dirtyChannels.poll()) != null) {
+                    updateWriteInterest(dirty);
                 }
 
-                // wait events from selected channels
-                _selector.select();
+                // wait events from selected channels, wake up every tick while timers are pending
+                long timeout = _timer.getSelectTimeout();
+                if (timeout > 0) {
+                    _selector.select(timeout);
+                }
+                else {
+                    _selector.select();
+                }
 
                 Iterator selectedKeys = _selector.selectedKeys().iterator();
                 while (selectedKeys.hasNext()) {
@@ -102,6 +135,8 @@ public abstract class SocketHandlerBase implements IServer, ISocketHandler {
 
                     processSelect(key);
                 }
+
+                _timer.advance();
             }
             catch (ClosedSelectorException e) {
                 break;
@@ -114,7 +149,7 @@ public abstract class SocketHandlerBase implements IServer, ISocketHandler {
     }
 
     protected void createWriteBuffer(SocketChannel socketChannel) {
-        List queue = new ArrayList();
+        WriteQueue queue = new WriteQueue();
         Object put;
         put = _pendingData.putIfAbsent(socketChannel, queue);
         if (put != null) {
@@ -132,39 +167,267 @@ public abstract class SocketHandlerBase implements IServer, ISocketHandler {
         if (key != null) {
             key.cancel();
         }
+        _readSuspended.remove(socketChannel);
 
-        if (_pendingData.containsKey(socketChannel)) {
-            _pendingData.remove(socketChannel);
+        WriteQueue queue = _pendingData.remove(socketChannel);
+        if (queue != null) {
+            // give leased buffers back to the pool
+            queue.close();
         }
     }
 
     @Override
     public void send(ChangeRequest request, byte[] data) {
-        switch (request.type) {
-            case ChangeRequest.CHANGE_SOCKET_OP:
-                List queue = (List) _pendingData.get(request.socket);
-                if (queue != null) {
-                    synchronized (queue) {
-                        // in general case, the write queue is always existed, unless, the socket has been shutdown
-                        queue.add(ByteBuffer.wrap(data));
-                    }
-                }
-                else {
-                    logger.warning(Util.getErrorMessage(new Throwable("Socket is closed! dropping this request")));
+        PooledBuffer buffer = null;
+        if (data != null) {
+            buffer = _bufferPool.wrap(data, 0, data.length);
+        }
+        send(request, buffer);
+    }
+
+    @Override
+    public void send(ChangeRequest request, PooledBuffer data) {
+        if ((request.type == ChangeRequest.CHANGE_SOCKET_OP) && (data != null)) {
+            write(request.socket, data);
+            return;
+        }
+
+        if (data != null) {
+            data.release();
+        }
+
+        addRequest(request);
+    }
+
+    @Override
+    public void write(SocketChannel socketChannel, PooledBuffer data) {
+        WriteQueue queue = _pendingData.get(socketChannel);
+        if ((queue == null) || !queue.add(data)) {
+            // socket has been shutdown
+            if (queue == null) {
+                data.release();
+            }
+            logger.fine("Socket is closed! dropping data: " + socketChannel);
+            return;
+        }
+
+        // too much data is waiting, stop reading from the other side
+        if (queue.exceedsHighWatermark(_config.getWriteHighWatermark())) {
+            addRequest(new ChangeRequest(socketChannel, ChangeRequest.SUSPEND_READ));
+        }
+
+        // any number of writes before next select ends up in one interest ops update
+        if (queue.markDirty()) {
+            _dirtyChannels.offer(socketChannel);
+            wakeup();
+        }
+    }
+
+    /**
+     * Count bytes read for a socket against its watermarks until its pipe has processed them,
+     * so reads stop even while the data waits for the crypto executor. Called by selector thread only
+     */
+    protected void reserveWrite(SocketChannel socketChannel, long bytes) {
+        WriteQueue queue = _pendingData.get(socketChannel);
+        if (queue == null) {
+            return;
+        }
+        queue.reserve(bytes);
+        if (queue.exceedsHighWatermark(_config.getWriteHighWatermark())) {
+            suspendPeerRead(socketChannel);
+        }
+    }
+
+    @Override
+    public void releaseWrite(SocketChannel socketChannel, long bytes) {
+        WriteQueue queue = _pendingData.get(socketChannel);
+        if (queue == null) {
+            return;
+        }
+        queue.unreserve(bytes);
+        // e.g. data was dropped or consumed by the pipe, no flush would resume the peer
+        if (queue.drainedBelowLowWatermark(_config.getWriteLowWatermark())) {
+            addRequest(new ChangeRequest(socketChannel, ChangeRequest.RESUME_READ));
+        }
+    }
+
+    /**
+     * Enable OP_WRITE for a socket which got new data, called by selector thread only
+     */
+    protected void updateWriteInterest(SocketChannel socketChannel) {
+        WriteQueue queue = _pendingData.get(socketChannel);
+        if (queue == null) {
+            return;
+        }
+        queue.clearDirty();
+
+        if (socketChannel.isConnectionPending()) {
+            // interest ops are set once connected
+            return;
+        }
+        SelectionKey key = socketChannel.keyFor(_selector);
+        if ((key != null) && key.isValid() && !queue.isEmpty()) {
+            int ops = key.interestOps();
+            if ((ops & SelectionKey.OP_WRITE) == 0) {
+                key.interestOps(ops | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Queue request for selector thread, could be called by any thread
+     */
+    protected void addRequest(ChangeRequest request) {
+        _requestQueue.offer(request);
+        wakeup();
+    }
+
+    /**
+     * Wake selector up at most once per select cycle
+     */
+    protected void wakeup() {
+        if ((Thread.currentThread() != _thread) && _wakenUp.compareAndSet(false, true)) {
+            _wakeups.incrementAndGet();
+            _selector.wakeup();
+        }
+        else {
+            // selector thread will process the request before next select, or wakeup is in flight
+            _wakeupsSuppressed.incrementAndGet();
+        }
+    }
+
+    public long getWakeups() {
+        return _wakeups.get();
+    }
+
+    public long getWakeupsSuppressed() {
+        return _wakeupsSuppressed.get();
+    }
+
+    protected void write(SelectionKey key) throws IOException {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+
+        WriteQueue queue = _pendingData.get(socketChannel);
+        if (queue != null) {
+            // write data to socket
+            long written = queue.flush(socketChannel, _config.getMaxWriteIovecs(), _writeStats);
+            PipeWorker pipe = _pipes.get(socketChannel);
+            if (pipe != null) {
+                _stats.addBytes(pipe.isLocalChannel(socketChannel), false, written);
+            }
+
+            if (queue.isEmpty()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+
+            // peer was stopped by this queue, it could be read again
+            if (queue.drainedBelowLowWatermark(_config.getWriteLowWatermark())) {
+                SocketChannel peer = getPeerChannel(socketChannel);
+                if (peer != null) {
+                    resumeRead(peer);
                 }
-                break;
+            }
+        }
+        else {
+            logger.warning("SocketHandlerBase::write queue = null: " + socketChannel);
+        }
+    }
+
+    protected SocketChannel getPeerChannel(SocketChannel socketChannel) {
+        PipeWorker pipe = _pipes.get(socketChannel);
+        if (pipe == null) {
+            return null;
+        }
+        return pipe.getPeerChannel(socketChannel);
+    }
+
+    /**
+     * Stop reading from the peer of a socket whose write queue is above the high watermark
+     */
+    protected void suspendPeerRead(SocketChannel socketChannel) {
+        WriteQueue queue = _pendingData.get(socketChannel);
+        SocketChannel peer = getPeerChannel(socketChannel);
+        if ((queue == null) || (peer == null) || !queue.isOverHighWatermark()) {
+            // already drained
+            return;
+        }
+
+        SelectionKey key = peer.keyFor(_selector);
+        if ((key != null) && key.isValid()) {
+            _readSuspended.add(peer);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Read from the peer of a socket again unless its write queue went above the high watermark since
+     */
+    protected void resumePeerRead(SocketChannel socketChannel) {
+        WriteQueue queue = _pendingData.get(socketChannel);
+        SocketChannel peer = getPeerChannel(socketChannel);
+        if ((queue == null) || (peer == null) || queue.isOverHighWatermark()) {
+            return;
         }
+        resumeRead(peer);
+    }
 
-        synchronized (_pendingRequest) {
-            _pendingRequest.add(request);
+    protected void resumeRead(SocketChannel socketChannel) {
+        SelectionKey key = socketChannel.keyFor(_selector);
+        if (_readSuspended.remove(socketChannel) && (key != null) && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
         }
+    }
 
-        _selector.wakeup();
+    /**
+     * Interest ops of a connected socket, based on its read and write state
+     */
+    protected int getInterestOps(SocketChannel socketChannel) {
+        int ops = 0;
+        if (!_readSuspended.contains(socketChannel)) {
+            ops |= SelectionKey.OP_READ;
+        }
+        WriteQueue queue = _pendingData.get(socketChannel);
+        if ((queue != null) && !queue.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        return ops;
+    }
+
+    public WriteStats getWriteStats() {
+        return _writeStats;
+    }
+
+    public ServerStats getStats() {
+        return _stats;
+    }
+
+    /**
+     * Bytes waiting in the write queues of all sockets
+     */
+    public long getPendingWriteBytes() {
+        long total = 0;
+        for (WriteQueue queue : _pendingData.values()) {
+            total += queue.getPendingBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Number of sockets which have data waiting to be written
+     */
+    public int getPendingWriteQueues() {
+        int count = 0;
+        for (WriteQueue queue : _pendingData.values()) {
+            if (!queue.isEmpty()) {
+                count++;
+            }
+        }
+        return count;
     }
 
     @Override
     public void send(ChangeRequest request) {
-        send(request, null);
+        send(request, (PooledBuffer) null);
     }
 
     public void close() {
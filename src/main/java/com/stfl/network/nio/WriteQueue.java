@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pending write buffers of a socket, flushed with gathering writes
+ */
+public class WriteQueue {
+    private final ArrayDeque<PooledBuffer> _buffers = new ArrayDeque<>();
+    private ByteBuffer[] _iovecs = new ByteBuffer[0];
+    private boolean _closed;
+    private long _pendingBytes;
+    // read for this socket but not handed over by the pipe yet
+    private long _inFlightBytes;
+    private boolean _overHighWatermark;
+    private boolean _dirty;
+
+    /**
+     * Queue data for writing, data is released and false is returned if the queue is closed already
+     */
+    public synchronized boolean add(PooledBuffer data) {
+        if (_closed) {
+            data.release();
+            return false;
+        }
+        _buffers.addLast(data);
+        _pendingBytes += data.buffer().remaining();
+        return true;
+    }
+
+    /**
+     * Return true if the queue was clean, i.e. its socket needs an interest ops update
+     */
+    public synchronized boolean markDirty() {
+        if (_dirty) {
+            return false;
+        }
+        _dirty = true;
+        return true;
+    }
+
+    public synchronized void clearDirty() {
+        _dirty = false;
+    }
+
+    public synchronized long getPendingBytes() {
+        return _pendingBytes;
+    }
+
+    /**
+     * Count bytes which are still processed by the pipe against the watermarks
+     */
+    public synchronized void reserve(long bytes) {
+        _inFlightBytes += bytes;
+    }
+
+    public synchronized void unreserve(long bytes) {
+        if (!_closed) {
+            _inFlightBytes -= bytes;
+        }
+    }
+
+    public synchronized long getInFlightBytes() {
+        return _inFlightBytes;
+    }
+
+    /**
+     * Return true once when pending and in flight bytes go above the high watermark
+     */
+    public synchronized boolean exceedsHighWatermark(long highWatermark) {
+        if (!_overHighWatermark && (_pendingBytes + _inFlightBytes > highWatermark)) {
+            _overHighWatermark = true;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean isOverHighWatermark() {
+        return _overHighWatermark;
+    }
+
+    /**
+     * Return true once when pending and in flight bytes go back to the low watermark after
+     * exceeding the high one
+     */
+    public synchronized boolean drainedBelowLowWatermark(long lowWatermark) {
+        if (_overHighWatermark && (_pendingBytes + _inFlightBytes <= lowWatermark)) {
+            _overHighWatermark = false;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean isEmpty() {
+        return _buffers.isEmpty();
+    }
+
+    public synchronized int size() {
+        return _buffers.size();
+    }
+
+    /**
+     * Write as much as the channel accepts, at most maxIovecs buffers per system call
+     */
+    public synchronized long flush(GatheringByteChannel channel, int maxIovecs, WriteStats stats) throws IOException {
+        long total = 0;
+        int syscalls = 0;
+
+        try {
+            while (!_buffers.isEmpty()) {
+                int count = Math.min(_buffers.size(), Math.max(maxIovecs, 1));
+                if (_iovecs.length < count) {
+                    _iovecs = new ByteBuffer[count];
+                }
+                Iterator<PooledBuffer> it = _buffers.iterator();
+                for (int i = 0; i < count; i++) {
+                    _iovecs[i] = it.next().buffer();
+                }
+
+                long written = channel.write(_iovecs, 0, count);
+                syscalls++;
+                total += written;
+                _pendingBytes -= written;
+
+                // release buffers which have been written completely
+                while (!_buffers.isEmpty() && !_buffers.peekFirst().buffer().hasRemaining()) {
+                    _buffers.pollFirst().release();
+                }
+
+                if (_iovecs[count - 1].hasRemaining()) {
+                    // socket buffer is full
+                    break;
+                }
+            }
+        } finally {
+            for (int i = 0; i < _iovecs.length && _iovecs[i] != null; i++) {
+                _iovecs[i] = null;
+            }
+            if (stats != null && syscalls > 0) {
+                stats.record(syscalls, total);
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Release all pending buffers, later data is dropped
+     */
+    public synchronized void close() {
+        _closed = true;
+        PooledBuffer data;
+        while ((data = _buffers.pollFirst()) != null) {
+            data.release();
+        }
+        _pendingBytes = 0;
+        _inFlightBytes = 0;
+    }
+}
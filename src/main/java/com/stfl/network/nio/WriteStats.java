@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network.nio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of socket writes
+ */
+public class WriteStats {
+    private final AtomicLong _flushes = new AtomicLong();
+    private final AtomicLong _syscalls = new AtomicLong();
+    private final AtomicLong _bytes = new AtomicLong();
+
+    public void record(int syscalls, long bytes) {
+        _flushes.incrementAndGet();
+        _syscalls.addAndGet(syscalls);
+        _bytes.addAndGet(bytes);
+    }
+
+    public long getFlushes() {
+        return _flushes.get();
+    }
+
+    public long getSyscalls() {
+        return _syscalls.get();
+    }
+
+    public long getBytes() {
+        return _bytes.get();
+    }
+
+    public double getSyscallsPerFlush() {
+        long flushes = _flushes.get();
+        return (flushes == 0) ? 0 : (double) _syscalls.get() / flushes;
+    }
+
+    public double getBytesPerSyscall() {
+        long syscalls = _syscalls.get();
+        return (syscalls == 0) ? 0 : (double) _bytes.get() / syscalls;
+    }
+
+    public void add(WriteStats other) {
+        _flushes.addAndGet(other.getFlushes());
+        _syscalls.addAndGet(other.getSyscalls());
+        _bytes.addAndGet(other.getBytes());
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss;
+
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AEAD crypt base class implementation, stream is framed into authenticated chunks
+ * [encrypted length][length tag][encrypted payload][payload tag] after a random salt
+ */
+public abstract class AeadCryptBase implements ICrypt {
+    public static final int PAYLOAD_SIZE_MASK = 0x3FFF;
+    protected static final int TAG_LENGTH = 16;
+    protected static final int NONCE_LENGTH = 12;
+    private static final int LENGTH_SIZE = 2;
+    private static final int CHUNK_OVERHEAD = LENGTH_SIZE + TAG_LENGTH + TAG_LENGTH;
+    private static final byte[] SUBKEY_INFO = {'s', 's', '-', 's', 'u', 'b', 'k', 'e', 'y'};
+
+    protected abstract void setSubkey(byte[] subkey, boolean isEncrypt) throws GeneralSecurityException;
+    /**
+     * Encrypt len bytes and append the tag, output is len + TAG_LENGTH bytes
+     */
+    protected abstract void seal(byte[] nonce, byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException;
+    /**
+     * Verify the tag at the end of len bytes and decrypt, output is len - TAG_LENGTH bytes
+     */
+    protected abstract void open(byte[] nonce, byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException;
+
+    protected final String _name;
+    protected final CryptStats _stats;
+    protected final ShadowSocksKey _ssKey;
+    protected final int _keyLength;
+    protected final int _saltLength;
+    protected final Lock encLock = new ReentrantLock();
+    protected final Lock decLock = new ReentrantLock();
+    private boolean _encryptSaltSet;
+    private boolean _decryptSaltSet;
+    private final byte[] _encNonce = new byte[NONCE_LENGTH];
+    private final byte[] _decNonce = new byte[NONCE_LENGTH];
+    private final byte[] _encLength = new byte[LENGTH_SIZE];
+    private final byte[] _encPlain = new byte[PAYLOAD_SIZE_MASK];
+    private final byte[] _encFrame = new byte[PAYLOAD_SIZE_MASK + CHUNK_OVERHEAD];
+    private byte[] _encInput = new byte[0];
+    // incremental decoder, fields of a chunk might be split into several packets
+    private byte[] _saltBuffer;
+    private int _saltReceived;
+    private final byte[] _decFrame = new byte[PAYLOAD_SIZE_MASK + TAG_LENGTH];
+    private final byte[] _decPlain = new byte[PAYLOAD_SIZE_MASK];
+    private int _decFrameLength;
+    private int _decPayloadLength = -1;
+    private boolean _decryptFailed;
+    private byte[] _decInput = new byte[0];
+    private byte[] _encBuffer = new byte[0];
+    private byte[] _decBuffer = new byte[0];
+
+    public AeadCryptBase(String name, String password) {
+        _name = name.toLowerCase();
+        _keyLength = getKeyLength();
+        _saltLength = _keyLength;
+        _ssKey = CryptContext.get(_name, password, _keyLength).getKey();
+        _stats = CryptStats.get(_name);
+        IvGenerator.getInstance().prefill(_saltLength);
+    }
+
+    @Override
+    public int getIVLength() {
+        return _saltLength;
+    }
+
+    protected byte[] getSubkey(byte[] salt) {
+        HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA1Digest());
+        hkdf.init(new HKDFParameters(_ssKey.getEncoded(), salt, SUBKEY_INFO));
+        byte[] subkey = new byte[_keyLength];
+        hkdf.generateBytes(subkey, 0, _keyLength);
+        return subkey;
+    }
+
+    /**
+     * Nonce is a little endian counter, increased after each seal or open
+     */
+    protected static void increment(byte[] nonce) {
+        for (int i = 0; i < nonce.length; i++) {
+            if (++nonce[i] != 0) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public int getOutputSize(int length, boolean isEncrypt) {
+        if (isEncrypt) {
+            int chunks = (length + PAYLOAD_SIZE_MASK - 1) / PAYLOAD_SIZE_MASK;
+            int size = length + chunks * CHUNK_OVERHEAD;
+            if (!_encryptSaltSet) {
+                size += _saltLength;
+            }
+            return size;
+        }
+        // a chunk received partly before might be completed by this data
+        return length + _decFrameLength;
+    }
+
+    @Override
+    public void encrypt(ByteBuffer src, ByteBuffer dst) {
+        synchronized (encLock) {
+            long startNanos = System.nanoTime();
+            int inputLength = src.remaining();
+            boolean inPlace = (src == dst);
+            int start = dst.position();
+            ByteBuffer in = src;
+            ByteBuffer out = dst;
+            if (inPlace) {
+                // output is larger than input, move input out of the way
+                int length = src.remaining();
+                if (_encInput.length < length) {
+                    _encInput = new byte[length];
+                }
+                src.duplicate().get(_encInput, 0, length);
+                in = ByteBuffer.wrap(_encInput, 0, length);
+                out = dst.duplicate();
+                out.limit(out.capacity());
+            }
+
+            try {
+                if (!_encryptSaltSet) {
+                    byte[] salt = IvGenerator.getInstance().next(_saltLength);
+                    setSubkey(getSubkey(salt), true);
+                    _encryptSaltSet = true;
+                    out.put(salt);
+                }
+
+                while (in.hasRemaining()) {
+                    int length = Math.min(in.remaining(), PAYLOAD_SIZE_MASK);
+                    in.get(_encPlain, 0, length);
+                    _encLength[0] = (byte) (length >> 8);
+                    _encLength[1] = (byte) length;
+
+                    seal(_encNonce, _encLength, 0, LENGTH_SIZE, _encFrame, 0);
+                    increment(_encNonce);
+                    seal(_encNonce, _encPlain, 0, length, _encFrame, LENGTH_SIZE + TAG_LENGTH);
+                    increment(_encNonce);
+                    out.put(_encFrame, 0, length + CHUNK_OVERHEAD);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(_name + ": " + e.getMessage(), e);
+            }
+
+            if (inPlace) {
+                dst.limit(out.position());
+                dst.position(start);
+            }
+            _stats.record(true, inputLength, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * IllegalStateException is thrown if a chunk fails authentication, the stream cannot be
+     * decrypted anymore after that.
+     */
+    @Override
+    public void decrypt(ByteBuffer src, ByteBuffer dst) {
+        synchronized (decLock) {
+            long startNanos = System.nanoTime();
+            int inputLength = src.remaining();
+            if (_decryptFailed) {
+                throw new IllegalStateException(_name + ": stream failed authentication");
+            }
+
+            boolean inPlace = (src == dst);
+            int start = dst.position();
+            ByteBuffer in = src;
+            ByteBuffer out = dst;
+            if (inPlace) {
+                // a pending chunk completed by this data might be larger than the input
+                int length = src.remaining();
+                if (_decInput.length < length) {
+                    _decInput = new byte[length];
+                }
+                src.duplicate().get(_decInput, 0, length);
+                in = ByteBuffer.wrap(_decInput, 0, length);
+                out = dst.duplicate();
+                out.limit(out.capacity());
+            }
+
+            try {
+                if (!_decryptSaltSet) {
+                    // salt might be split into several packets
+                    if (_saltBuffer == null) {
+                        _saltBuffer = new byte[_saltLength];
+                    }
+                    int n = Math.min(in.remaining(), _saltLength - _saltReceived);
+                    in.get(_saltBuffer, _saltReceived, n);
+                    _saltReceived += n;
+                    if (_saltReceived == _saltLength) {
+                        setSubkey(getSubkey(_saltBuffer), false);
+                        _decryptSaltSet = true;
+                        _saltBuffer = null;
+                    }
+                }
+
+                while (_decryptSaltSet && in.hasRemaining()) {
+                    int need = (_decPayloadLength < 0) ? (LENGTH_SIZE + TAG_LENGTH) : (_decPayloadLength + TAG_LENGTH);
+                    int n = Math.min(in.remaining(), need - _decFrameLength);
+                    in.get(_decFrame, _decFrameLength, n);
+                    _decFrameLength += n;
+                    if (_decFrameLength < need) {
+                        break;
+                    }
+                    _decFrameLength = 0;
+
+                    open(_decNonce, _decFrame, 0, need, _decPlain, 0);
+                    increment(_decNonce);
+                    if (_decPayloadLength < 0) {
+                        _decPayloadLength = ((_decPlain[0] & 0xff) << 8) | (_decPlain[1] & 0xff);
+                        if (_decPayloadLength > PAYLOAD_SIZE_MASK) {
+                            // reserved bits must be zero
+                            throw new GeneralSecurityException("invalid chunk length " + _decPayloadLength);
+                        }
+                    }
+                    else {
+                        out.put(_decPlain, 0, _decPayloadLength);
+                        _decPayloadLength = -1;
+                    }
+                }
+            } catch (GeneralSecurityException e) {
+                _decryptFailed = true;
+                throw new IllegalStateException(_name + ": " + e.getMessage(), e);
+            }
+
+            if (inPlace) {
+                dst.limit(out.position());
+                dst.position(start);
+            }
+            _stats.record(false, inputLength, System.nanoTime() - startNanos);
+        }
+    }
+
+    @Override
+    public void release() {
+        // subkey is derived per salt, nothing could be reused
+    }
+
+    @Override
+    public void encrypt(byte[] data, ByteArrayOutputStream stream) {
+        encrypt(data, data.length, stream);
+    }
+
+    @Override
+    public void encrypt(byte[] data, int length, ByteArrayOutputStream stream) {
+        synchronized (encLock) {
+            stream.reset();
+            if (_encBuffer.length < getOutputSize(length, true)) {
+                _encBuffer = new byte[getOutputSize(length, true)];
+            }
+            ByteBuffer dst = ByteBuffer.wrap(_encBuffer);
+            encrypt(ByteBuffer.wrap(data, 0, length), dst);
+            stream.write(_encBuffer, 0, dst.position());
+        }
+    }
+
+    @Override
+    public void decrypt(byte[] data, ByteArrayOutputStream stream) {
+        decrypt(data, data.length, stream);
+    }
+
+    @Override
+    public void decrypt(byte[] data, int length, ByteArrayOutputStream stream) {
+        synchronized (decLock) {
+            stream.reset();
+            if (_decBuffer.length < getOutputSize(length, false)) {
+                _decBuffer = new byte[getOutputSize(length, false)];
+            }
+            ByteBuffer dst = ByteBuffer.wrap(_decBuffer);
+            decrypt(ByteBuffer.wrap(data, 0, length), dst);
+            stream.write(_decBuffer, 0, dst.position());
+        }
+    }
+}
@@ -31,16 +31,9 @@
 
 package com.stfl.ss;
 
-import org.bouncycastle.crypto.StreamBlockCipher;
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.engines.AESFastEngine;
-import org.bouncycastle.crypto.modes.CFBBlockCipher;
-import org.bouncycastle.crypto.modes.OFBBlockCipher;
-
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.ByteArrayOutputStream;
-import java.security.InvalidAlgorithmParameterException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -55,6 +48,9 @@ public class AesCrypt extends CryptBase {
     public final static String CIPHER_AES_128_OFB = "aes-128-ofb";
     public final static String CIPHER_AES_192_OFB = "aes-192-ofb";
     public final static String CIPHER_AES_256_OFB = "aes-256-ofb";
+    public final static String CIPHER_AES_128_CTR = "aes-128-ctr";
+    public final static String CIPHER_AES_192_CTR = "aes-192-ctr";
+    public final static String CIPHER_AES_256_CTR = "aes-256-ctr";
 
     public static Map<String, String> getCiphers() {
         Map<String, String> ciphers = new HashMap<>();
@@ -64,6 +60,9 @@ public class AesCrypt extends CryptBase {
         ciphers.put(CIPHER_AES_128_OFB, AesCrypt.class.getName());
         ciphers.put(CIPHER_AES_192_OFB, AesCrypt.class.getName());
         ciphers.put(CIPHER_AES_256_OFB, AesCrypt.class.getName());
+        ciphers.put(CIPHER_AES_128_CTR, AesCrypt.class.getName());
+        ciphers.put(CIPHER_AES_192_CTR, AesCrypt.class.getName());
+        ciphers.put(CIPHER_AES_256_CTR, AesCrypt.class.getName());
 
         return ciphers;
     }
@@ -74,49 +73,19 @@ public class AesCrypt extends CryptBase {
 
     @Override
     public int getKeyLength() {
-        if(_name.equals(CIPHER_AES_128_CFB) || _name.equals(CIPHER_AES_128_OFB)) {
+        if(_name.equals(CIPHER_AES_128_CFB) || _name.equals(CIPHER_AES_128_OFB) || _name.equals(CIPHER_AES_128_CTR)) {
             return 16;
         }
-        else if (_name.equals(CIPHER_AES_192_CFB) || _name.equals(CIPHER_AES_192_OFB)) {
+        else if (_name.equals(CIPHER_AES_192_CFB) || _name.equals(CIPHER_AES_192_OFB) || _name.equals(CIPHER_AES_192_CTR)) {
             return 24;
         }
-        else if (_name.equals(CIPHER_AES_256_CFB) || _name.equals(CIPHER_AES_256_OFB)) {
+        else if (_name.equals(CIPHER_AES_256_CFB) || _name.equals(CIPHER_AES_256_OFB) || _name.equals(CIPHER_AES_256_CTR)) {
             return 32;
         }
 
         return 0;
     }
 
-    @Override
-    protected StreamBlockCipher getCipher(boolean isEncrypted) throws InvalidAlgorithmParameterException {
-        AESFastEngine engine = new AESFastEngine();
-        StreamBlockCipher cipher;
-
-        if (_name.equals(CIPHER_AES_128_CFB)) {
-            cipher = new CFBBlockCipher(engine, getIVLength() * 8);
-        }
-        else if (_name.equals(CIPHER_AES_192_CFB)) {
-            cipher = new CFBBlockCipher(engine, getIVLength() * 8);
-        }
-        else if (_name.equals(CIPHER_AES_256_CFB)) {
-            cipher = new CFBBlockCipher(engine, getIVLength() * 8);
-        }
-        else if (_name.equals(CIPHER_AES_128_OFB)) {
-            cipher = new OFBBlockCipher(engine, getIVLength() * 8);
-        }
-        else if (_name.equals(CIPHER_AES_192_OFB)) {
-            cipher = new OFBBlockCipher(engine, getIVLength() * 8);
-        }
-        else if (_name.equals(CIPHER_AES_256_OFB)) {
-            cipher = new OFBBlockCipher(engine, getIVLength() * 8);
-        }
-        else {
-            throw new InvalidAlgorithmParameterException(_name);
-        }
-
-        return cipher;
-    }
-
     @Override
     public int getIVLength() {
         return 16;
@@ -128,20 +97,12 @@ public class AesCrypt extends CryptBase {
     }
 
     @Override
-    protected void _encrypt(byte[] data, ByteArrayOutputStream stream) {
-        int noBytesProcessed;
-        byte[] buffer = new byte[data.length];
-
-        noBytesProcessed = encCipher.processBytes(data, 0, data.length, buffer, 0);
-        stream.write(buffer, 0, noBytesProcessed);
+    protected void _encrypt(ByteBuffer src, ByteBuffer dst) {
+        processEncrypt(src, dst);
     }
 
     @Override
-    protected void _decrypt(byte[] data, ByteArrayOutputStream stream) {
-        int noBytesProcessed;
-        byte[] buffer = new byte[data.length];
-
-        noBytesProcessed = decCipher.processBytes(data, 0, data.length, buffer, 0);
-        stream.write(buffer, 0, noBytesProcessed);
+    protected void _decrypt(ByteBuffer src, ByteBuffer dst) {
+        processDecrypt(src, dst);
     }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AES-GCM AEAD Crypt implementation, backed by the JCE provider
+ */
+public class AesGcmCrypt extends AeadCryptBase {
+
+    public final static String CIPHER_AES_128_GCM = "aes-128-gcm";
+    public final static String CIPHER_AES_192_GCM = "aes-192-gcm";
+    public final static String CIPHER_AES_256_GCM = "aes-256-gcm";
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private Cipher _encCipher;
+    private Cipher _decCipher;
+    private SecretKeySpec _encKey;
+    private SecretKeySpec _decKey;
+
+    public static Map<String, String> getCiphers() {
+        Map<String, String> ciphers = new HashMap<>();
+        ciphers.put(CIPHER_AES_128_GCM, AesGcmCrypt.class.getName());
+        ciphers.put(CIPHER_AES_192_GCM, AesGcmCrypt.class.getName());
+        ciphers.put(CIPHER_AES_256_GCM, AesGcmCrypt.class.getName());
+
+        return ciphers;
+    }
+
+    public AesGcmCrypt(String name, String password) {
+        super(name, password);
+    }
+
+    @Override
+    public int getKeyLength() {
+        if (_name.equals(CIPHER_AES_128_GCM)) {
+            return 16;
+        }
+        else if (_name.equals(CIPHER_AES_192_GCM)) {
+            return 24;
+        }
+        else if (_name.equals(CIPHER_AES_256_GCM)) {
+            return 32;
+        }
+
+        return 0;
+    }
+
+    @Override
+    protected void setSubkey(byte[] subkey, boolean isEncrypt) throws GeneralSecurityException {
+        if (isEncrypt) {
+            _encCipher = Cipher.getInstance(TRANSFORMATION);
+            _encKey = new SecretKeySpec(subkey, "AES");
+        }
+        else {
+            _decCipher = Cipher.getInstance(TRANSFORMATION);
+            _decKey = new SecretKeySpec(subkey, "AES");
+        }
+    }
+
+    @Override
+    protected void seal(byte[] nonce, byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        _encCipher.init(Cipher.ENCRYPT_MODE, _encKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        _encCipher.doFinal(in, inOff, len, out, outOff);
+    }
+
+    @Override
+    protected void open(byte[] nonce, byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        _decCipher.init(Cipher.DECRYPT_MODE, _decKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        _decCipher.doFinal(in, inOff, len, out, outOff);
+    }
+}
@@ -31,14 +31,9 @@
 
 package com.stfl.ss;
 
-import org.bouncycastle.crypto.StreamBlockCipher;
-import org.bouncycastle.crypto.engines.CamelliaEngine;
-import org.bouncycastle.crypto.modes.CFBBlockCipher;
-
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.ByteArrayOutputStream;
-import java.security.InvalidAlgorithmParameterException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -79,27 +74,6 @@ public class CamelliaCrypt extends CryptBase {
         return 0;
     }
 
-    @Override
-    protected StreamBlockCipher getCipher(boolean isEncrypted) throws InvalidAlgorithmParameterException {
-        CamelliaEngine engine = new CamelliaEngine();
-        StreamBlockCipher cipher;
-
-        if (_name.equals(CIPHER_CAMELLIA_128_CFB)) {
-            cipher = new CFBBlockCipher(engine, getIVLength() * 8);
-        }
-        else if (_name.equals(CIPHER_CAMELLIA_192_CFB)) {
-            cipher = new CFBBlockCipher(engine, getIVLength() * 8);
-        }
-        else if (_name.equals(CIPHER_CAMELLIA_256_CFB)) {
-            cipher = new CFBBlockCipher(engine, getIVLength() * 8);
-        }
-        else {
-            throw new InvalidAlgorithmParameterException(_name);
-        }
-
-        return cipher;
-    }
-
     @Override
     public int getIVLength() {
         return 16;
@@ -111,20 +85,12 @@ public class CamelliaCrypt extends CryptBase {
     }
 
     @Override
-    protected void _encrypt(byte[] data, ByteArrayOutputStream stream) {
-        int noBytesProcessed;
-        byte[] buffer = new byte[data.length];
-
-        noBytesProcessed = encCipher.processBytes(data, 0, data.length, buffer, 0);
-        stream.write(buffer, 0, noBytesProcessed);
+    protected void _encrypt(ByteBuffer src, ByteBuffer dst) {
+        processEncrypt(src, dst);
     }
 
     @Override
-    protected void _decrypt(byte[] data, ByteArrayOutputStream stream) {
-        int noBytesProcessed;
-        byte[] buffer = new byte[data.length];
-
-        noBytesProcessed = decCipher.processBytes(data, 0, data.length, buffer, 0);
-        stream.write(buffer, 0, noBytesProcessed);
+    protected void _decrypt(ByteBuffer src, ByteBuffer dst) {
+        processDecrypt(src, dst);
     }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ChaCha20 Crypt implementation, original (8 byte IV) and IETF (12 byte IV) variants
+ */
+public class ChaCha20Crypt extends CryptBase {
+
+    public final static String CIPHER_CHACHA20 = "chacha20";
+    public final static String CIPHER_CHACHA20_IETF = "chacha20-ietf";
+
+    public static Map<String, String> getCiphers() {
+        Map<String, String> ciphers = new HashMap<>();
+        ciphers.put(CIPHER_CHACHA20, ChaCha20Crypt.class.getName());
+        ciphers.put(CIPHER_CHACHA20_IETF, ChaCha20Crypt.class.getName());
+
+        return ciphers;
+    }
+
+    public ChaCha20Crypt(String name, String password) {
+        super(name, password);
+    }
+
+    @Override
+    public int getKeyLength() {
+        return 32;
+    }
+
+    @Override
+    public int getIVLength() {
+        if (_name.equals(CIPHER_CHACHA20_IETF)) {
+            return 12;
+        }
+
+        return 8;
+    }
+
+    @Override
+    protected SecretKey getKey() {
+        return new SecretKeySpec(_ssKey.getEncoded(), "ChaCha20");
+    }
+
+    @Override
+    protected void _encrypt(ByteBuffer src, ByteBuffer dst) {
+        processEncrypt(src, dst);
+    }
+
+    @Override
+    protected void _decrypt(ByteBuffer src, ByteBuffer dst) {
+        processDecrypt(src, dst);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss;
+
+import org.bouncycastle.crypto.engines.ChaChaEngine;
+import org.bouncycastle.util.Pack;
+
+/**
+ * ChaCha20 with 96 bit nonce and 32 bit block counter as defined in RFC 7539
+ */
+public class ChaCha7539Engine extends ChaChaEngine {
+
+    public ChaCha7539Engine() {
+        super();
+    }
+
+    @Override
+    public String getAlgorithmName() {
+        return "ChaCha7539-" + rounds;
+    }
+
+    @Override
+    protected int getNonceSize() {
+        return 12;
+    }
+
+    @Override
+    protected void advanceCounter(long diff) {
+        long counter = getCounter() + diff;
+        if (counter > 0xffffffffL) {
+            throw new IllegalStateException("attempt to increase counter past 2^32.");
+        }
+        engineState[12] = (int) counter;
+    }
+
+    @Override
+    protected void advanceCounter() {
+        if (++engineState[12] == 0) {
+            throw new IllegalStateException("attempt to increase counter past 2^32.");
+        }
+    }
+
+    @Override
+    protected void retreatCounter(long diff) {
+        long counter = getCounter() - diff;
+        if (counter < 0) {
+            throw new IllegalStateException("attempt to reduce counter past zero.");
+        }
+        engineState[12] = (int) counter;
+    }
+
+    @Override
+    protected void retreatCounter() {
+        if (engineState[12] == 0) {
+            throw new IllegalStateException("attempt to reduce counter past zero.");
+        }
+        --engineState[12];
+    }
+
+    @Override
+    protected long getCounter() {
+        return engineState[12] & 0xffffffffL;
+    }
+
+    @Override
+    protected void resetCounter() {
+        engineState[12] = 0;
+    }
+
+    @Override
+    protected void setKey(byte[] keyBytes, byte[] ivBytes) {
+        if (keyBytes != null) {
+            if (keyBytes.length != 32) {
+                throw new IllegalArgumentException(getAlgorithmName() + " requires 256 bit key");
+            }
+            // "expand 32-byte k"
+            Pack.littleEndianToInt(sigma, 0, engineState, 0, 4);
+            Pack.littleEndianToInt(keyBytes, 0, engineState, 4, 8);
+        }
+
+        // block counter is reset by the caller, nonce takes the remaining 3 words
+        Pack.littleEndianToInt(ivBytes, 0, engineState, 13, 3);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss;
+
+import org.bouncycastle.crypto.generators.Poly1305KeyGenerator;
+import org.bouncycastle.crypto.macs.Poly1305;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.bouncycastle.util.Pack;
+
+import javax.crypto.AEADBadTagException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ChaCha20-Poly1305 AEAD Crypt implementation (RFC 7539)
+ */
+public class Chacha20Poly1305Crypt extends AeadCryptBase {
+
+    public final static String CIPHER_CHACHA20_IETF_POLY1305 = "chacha20-ietf-poly1305";
+
+    private static final byte[] ZERO = new byte[64];
+
+    private final ChaCha7539Engine _encEngine = new ChaCha7539Engine();
+    private final ChaCha7539Engine _decEngine = new ChaCha7539Engine();
+    private final Poly1305 _encMac = new Poly1305();
+    private final Poly1305 _decMac = new Poly1305();
+    private final byte[] _encBlock = new byte[64];
+    private final byte[] _decBlock = new byte[64];
+    private final byte[] _encPolyKey = new byte[32];
+    private final byte[] _decPolyKey = new byte[32];
+    private final byte[] _decTag = new byte[TAG_LENGTH];
+    private final byte[] _encLengths = new byte[16];
+    private final byte[] _decLengths = new byte[16];
+    private KeyParameter _encKey;
+    private KeyParameter _decKey;
+
+    public static Map<String, String> getCiphers() {
+        Map<String, String> ciphers = new HashMap<>();
+        ciphers.put(CIPHER_CHACHA20_IETF_POLY1305, Chacha20Poly1305Crypt.class.getName());
+
+        return ciphers;
+    }
+
+    public Chacha20Poly1305Crypt(String name, String password) {
+        super(name, password);
+    }
+
+    @Override
+    public int getKeyLength() {
+        return 32;
+    }
+
+    @Override
+    protected void setSubkey(byte[] subkey, boolean isEncrypt) {
+        if (isEncrypt) {
+            _encKey = new KeyParameter(subkey);
+        }
+        else {
+            _decKey = new KeyParameter(subkey);
+        }
+    }
+
+    @Override
+    protected void seal(byte[] nonce, byte[] in, int inOff, int len, byte[] out, int outOff) {
+        initMac(_encEngine, _encMac, _encKey, nonce, _encBlock, _encPolyKey);
+        _encEngine.processBytes(in, inOff, len, out, outOff);
+        updateMac(_encMac, out, outOff, len, _encLengths);
+        _encMac.doFinal(out, outOff + len);
+    }
+
+    @Override
+    protected void open(byte[] nonce, byte[] in, int inOff, int len, byte[] out, int outOff) throws AEADBadTagException {
+        int length = len - TAG_LENGTH;
+        initMac(_decEngine, _decMac, _decKey, nonce, _decBlock, _decPolyKey);
+        updateMac(_decMac, in, inOff, length, _decLengths);
+        _decMac.doFinal(_decTag, 0);
+
+        // constant time comparison
+        int diff = 0;
+        for (int i = 0; i < TAG_LENGTH; i++) {
+            diff |= _decTag[i] ^ in[inOff + length + i];
+        }
+        if (diff != 0) {
+            throw new AEADBadTagException("mac check failed");
+        }
+        _decEngine.processBytes(in, inOff, length, out, outOff);
+    }
+
+    /**
+     * One time Poly1305 key (r, s) is the first half of key stream block 0, payload starts from block 1
+     */
+    private static void initMac(ChaCha7539Engine engine, Poly1305 mac, KeyParameter key, byte[] nonce, byte[] block, byte[] polyKey) {
+        engine.init(true, new ParametersWithIV(key, nonce));
+        engine.processBytes(ZERO, 0, ZERO.length, block, 0);
+
+        // BouncyCastle takes the key as (s, r) with r clamped
+        System.arraycopy(block, 16, polyKey, 0, 16);
+        System.arraycopy(block, 0, polyKey, 16, 16);
+        Poly1305KeyGenerator.clamp(polyKey);
+        mac.init(new KeyParameter(polyKey));
+    }
+
+    /**
+     * MAC over cipher text with padding and lengths, there is no additional data
+     */
+    private static void updateMac(Poly1305 mac, byte[] buf, int off, int len, byte[] lengths) {
+        mac.update(buf, off, len);
+        int padding = (16 - (len % 16)) % 16;
+        mac.update(ZERO, 0, padding);
+        Pack.longToLittleEndian((long) len, lengths, 8);
+        mac.update(lengths, 0, 16);
+    }
+}
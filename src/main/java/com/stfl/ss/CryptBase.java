@@ -31,15 +31,12 @@
 
 package com.stfl.ss;
 
-import com.stfl.misc.Util;
-import org.bouncycastle.crypto.StreamBlockCipher;
-import org.bouncycastle.crypto.params.KeyParameter;
-import org.bouncycastle.crypto.params.ParametersWithIV;
+import com.stfl.ss.backend.IStreamCipher;
 
 import javax.crypto.SecretKey;
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
@@ -48,13 +45,12 @@ import java.util.logging.Logger;
  * Crypt base class implementation
  */
 public abstract class CryptBase implements ICrypt {
-
-    protected abstract StreamBlockCipher getCipher(boolean isEncrypted) throws InvalidAlgorithmParameterException;
     protected abstract SecretKey getKey();
-    protected abstract void _encrypt(byte[] data, ByteArrayOutputStream stream);
-    protected abstract void _decrypt(byte[] data, ByteArrayOutputStream stream);
+    protected abstract void _encrypt(ByteBuffer src, ByteBuffer dst);
+    protected abstract void _decrypt(ByteBuffer src, ByteBuffer dst);
 
     protected final String _name;
+    protected final CryptStats _stats;
     protected final SecretKey _key;
     protected final ShadowSocksKey _ssKey;
     protected final int _ivLength;
@@ -65,16 +61,24 @@ public abstract class CryptBase implements ICrypt {
     protected byte[] _decryptIV;
     protected final Lock encLock = new ReentrantLock();
     protected final Lock decLock = new ReentrantLock();
-    protected StreamBlockCipher encCipher;
-    protected StreamBlockCipher decCipher;
+    protected final CryptContext _context;
+    protected IStreamCipher encCipher;
+    protected IStreamCipher decCipher;
+    private byte[] _ivBuffer;
+    private int _ivReceived;
+    private byte[] _encBuffer = new byte[0];
+    private byte[] _decBuffer = new byte[0];
     private Logger logger = Logger.getLogger(CryptBase.class.getName());
 
     public CryptBase(String name, String password) {
         _name = name.toLowerCase();
         _ivLength = getIVLength();
         _keyLength = getKeyLength();
-        _ssKey = new ShadowSocksKey(password, _keyLength);
+        _context = CryptContext.get(_name, password, _keyLength);
+        _ssKey = _context.getKey();
         _key = getKey();
+        _stats = CryptStats.get(_name);
+        IvGenerator.getInstance().prefill(_ivLength);
     }
 
     protected void setIV(byte[] iv, boolean isEncrypt)
@@ -88,10 +92,8 @@ public abstract class CryptBase implements ICrypt {
             _encryptIV = new byte[_ivLength];
             System.arraycopy(iv, 0, _encryptIV, 0, _ivLength);
             try {
-                encCipher = getCipher(isEncrypt);
-                ParametersWithIV parameterIV = new ParametersWithIV(new KeyParameter(_key.getEncoded()), _encryptIV);
-                encCipher.init(isEncrypt, parameterIV);
-            } catch (InvalidAlgorithmParameterException e) {
+                encCipher = _context.acquire(_encryptIV, isEncrypt);
+            } catch (GeneralSecurityException e) {
                 logger.info(e.toString());
             }
         }
@@ -100,65 +102,160 @@ public abstract class CryptBase implements ICrypt {
             _decryptIV = new byte[_ivLength];
             System.arraycopy(iv, 0, _decryptIV, 0, _ivLength);
             try {
-                decCipher = getCipher(isEncrypt);
-                ParametersWithIV parameterIV = new ParametersWithIV(new KeyParameter(_key.getEncoded()), _decryptIV);
-                decCipher.init(isEncrypt, parameterIV);
-            } catch (InvalidAlgorithmParameterException e) {
+                decCipher = _context.acquire(_decryptIV, isEncrypt);
+            } catch (GeneralSecurityException e) {
                 logger.info(e.toString());
             }
         }
     }
 
+    protected void processEncrypt(ByteBuffer src, ByteBuffer dst) {
+        encCipher.process(src, dst);
+    }
+
+    protected void processDecrypt(ByteBuffer src, ByteBuffer dst) {
+        decCipher.process(src, dst);
+    }
+
     @Override
-    public void encrypt(byte[] data, ByteArrayOutputStream stream) {
+    public int getOutputSize(int length, boolean isEncrypt) {
+        if (isEncrypt && !_encryptIVSet) {
+            return length + _ivLength;
+        }
+        return length;
+    }
+
+    @Override
+    public void encrypt(ByteBuffer src, ByteBuffer dst) {
         synchronized (encLock) {
-            stream.reset();
+            long startNanos = System.nanoTime();
+            int inputLength = src.remaining();
+            boolean inPlace = (src == dst);
+            int start = dst.position();
+            ByteBuffer in = src;
+            ByteBuffer out = dst;
+            if (inPlace) {
+                in = src.duplicate();
+                out = dst.duplicate();
+                out.limit(out.capacity());
+            }
+
             if (!_encryptIVSet) {
                 _encryptIVSet = true;
-                byte[] iv = Util.randomBytes(_ivLength);
+                byte[] iv = IvGenerator.getInstance().next(_ivLength);
                 setIV(iv, true);
-                try {
-                    stream.write(iv);
-                } catch (IOException e) {
-                    logger.info(e.toString());
+                if (inPlace) {
+                    // move payload backward to make room for IV
+                    int end = in.limit();
+                    for (int i = end - 1; i >= start; i--) {
+                        out.put(i + _ivLength, out.get(i));
+                    }
+                    in.limit(end + _ivLength).position(start + _ivLength);
                 }
+                out.put(iv);
+            }
 
+            _encrypt(in, out);
+
+            if (inPlace) {
+                dst.limit(out.position());
+                dst.position(start);
+            }
+            _stats.record(true, inputLength, System.nanoTime() - startNanos);
+        }
+    }
+
+    @Override
+    public void decrypt(ByteBuffer src, ByteBuffer dst) {
+        synchronized (decLock) {
+            long startNanos = System.nanoTime();
+            int inputLength = src.remaining();
+            boolean inPlace = (src == dst);
+            int start = dst.position();
+            ByteBuffer in = src;
+            ByteBuffer out = dst;
+            if (inPlace) {
+                in = src.duplicate();
+                out = dst.duplicate();
+                out.limit(out.capacity());
             }
 
-            _encrypt(data, stream);
+            if (!_decryptIVSet) {
+                // IV might be split into several packets
+                if (_ivBuffer == null) {
+                    _ivBuffer = new byte[_ivLength];
+                }
+                int n = Math.min(in.remaining(), _ivLength - _ivReceived);
+                in.get(_ivBuffer, _ivReceived, n);
+                _ivReceived += n;
+                if (_ivReceived == _ivLength) {
+                    _decryptIVSet = true;
+                    setIV(_ivBuffer, false);
+                    _ivBuffer = null;
+                }
+            }
+
+            if (_decryptIVSet) {
+                _decrypt(in, out);
+            }
+
+            if (inPlace) {
+                dst.limit(out.position());
+                dst.position(start);
+            }
+            _stats.record(false, inputLength, System.nanoTime() - startNanos);
         }
     }
 
     @Override
-    public void encrypt(byte[] data, int length, ByteArrayOutputStream stream) {
-        byte[] d = new byte[length];
-        System.arraycopy(data, 0, d, 0, length);
-        encrypt(d, stream);
+    public void release() {
+        synchronized (encLock) {
+            if (encCipher != null) {
+                _context.recycle(encCipher, true);
+                encCipher = null;
+            }
+        }
+        synchronized (decLock) {
+            if (decCipher != null) {
+                _context.recycle(decCipher, false);
+                decCipher = null;
+            }
+        }
     }
 
     @Override
-    public void decrypt(byte[] data, ByteArrayOutputStream stream) {
-        byte[] temp;
+    public void encrypt(byte[] data, ByteArrayOutputStream stream) {
+        encrypt(data, data.length, stream);
+    }
 
-        synchronized (decLock) {
+    @Override
+    public void encrypt(byte[] data, int length, ByteArrayOutputStream stream) {
+        synchronized (encLock) {
             stream.reset();
-            if (!_decryptIVSet) {
-                _decryptIVSet = true;
-                setIV(data, false);
-                temp = new byte[data.length - _ivLength];
-                System.arraycopy(data, _ivLength, temp, 0, data.length - _ivLength);
-            } else {
-                temp = data;
+            if (_encBuffer.length < getOutputSize(length, true)) {
+                _encBuffer = new byte[getOutputSize(length, true)];
             }
-
-            _decrypt(temp, stream);
+            ByteBuffer dst = ByteBuffer.wrap(_encBuffer);
+            encrypt(ByteBuffer.wrap(data, 0, length), dst);
+            stream.write(_encBuffer, 0, dst.position());
         }
     }
 
+    @Override
+    public void decrypt(byte[] data, ByteArrayOutputStream stream) {
+        decrypt(data, data.length, stream);
+    }
+
     @Override
     public void decrypt(byte[] data, int length, ByteArrayOutputStream stream) {
-        byte[] d = new byte[length];
-        System.arraycopy(data, 0, d, 0, length);
-        decrypt(d, stream);
+        synchronized (decLock) {
+            stream.reset();
+            if (_decBuffer.length < length) {
+                _decBuffer = new byte[length];
+            }
+            ByteBuffer dst = ByteBuffer.wrap(_decBuffer);
+            decrypt(ByteBuffer.wrap(data, 0, length), dst);
+            stream.write(_decBuffer, 0, dst.position());
+        }
     }
 }
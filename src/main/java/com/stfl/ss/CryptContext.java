@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss;
+
+import com.stfl.ss.backend.CipherBackendFactory;
+import com.stfl.ss.backend.IStreamCipher;
+import com.stfl.ss.backend.LookaheadCipher;
+
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per (method, password) state shared by all crypts: the derived key and keyed ciphers
+ * given back by closed connections, so a new connection only costs an IV setup
+ */
+public class CryptContext {
+    private static final int MAX_POOLED = 1024;
+    private static final ConcurrentMap<Key, CryptContext> contexts = new ConcurrentHashMap<>();
+
+    private final String _name;
+    private final ShadowSocksKey _key;
+    private final Queue<IStreamCipher> _encPool = new ConcurrentLinkedQueue<>();
+    private final Queue<IStreamCipher> _decPool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger _encPooled = new AtomicInteger();
+    private final AtomicInteger _decPooled = new AtomicInteger();
+
+    public static CryptContext get(String name, String password, int keyLength) {
+        Key key = new Key(name, password);
+        CryptContext context = contexts.get(key);
+        if (context == null) {
+            CryptContext created = new CryptContext(name, new ShadowSocksKey(password, keyLength));
+            context = contexts.putIfAbsent(key, created);
+            if (context == null) {
+                context = created;
+            }
+        }
+        return context;
+    }
+
+    private CryptContext(String name, ShadowSocksKey key) {
+        _name = name;
+        _key = key;
+    }
+
+    public ShadowSocksKey getKey() {
+        return _key;
+    }
+
+    /**
+     * Keyed cipher for a new IV, taken from the pool if possible
+     */
+    public IStreamCipher acquire(byte[] iv, boolean isEncrypt) throws GeneralSecurityException {
+        IStreamCipher cipher = (isEncrypt ? _encPool : _decPool).poll();
+        if (cipher != null) {
+            (isEncrypt ? _encPooled : _decPooled).decrementAndGet();
+            cipher.init(iv);
+            return cipher;
+        }
+
+        byte[] key = _key.getEncoded();
+        cipher = CipherBackendFactory.get(_name, key.length, iv.length).getCipher(_name, key, iv, isEncrypt);
+        int lookahead = CipherBackendFactory.getKeyStreamLookahead();
+        if ((lookahead > 0) && LookaheadCipher.isSupported(_name)) {
+            cipher = new LookaheadCipher(cipher, lookahead);
+        }
+        return cipher;
+    }
+
+    public void recycle(IStreamCipher cipher, boolean isEncrypt) {
+        AtomicInteger pooled = isEncrypt ? _encPooled : _decPooled;
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            return;
+        }
+        (isEncrypt ? _encPool : _decPool).offer(cipher);
+    }
+
+    private static class Key {
+        private final String _name;
+        private final String _password;
+
+        public Key(String name, String password) {
+            _name = name;
+            _password = password;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return _name.equals(other._name) && _password.equals(other._password);
+        }
+
+        @Override
+        public int hashCode() {
+            return _name.hashCode() * 31 + _password.hashCode();
+        }
+    }
+}
@@ -31,8 +31,12 @@
 
 package com.stfl.ss;
 
-import com.stfl.misc.Reflection;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
@@ -44,8 +48,14 @@ public class CryptFactory {
         putAll(CamelliaCrypt.getCiphers());
         putAll(BlowFishCrypt.getCiphers());
         putAll(SeedCrypt.getCiphers());
+        putAll(ChaCha20Crypt.getCiphers());
+        putAll(Salsa20Crypt.getCiphers());
+        putAll(Rc4Md5Crypt.getCiphers());
+        putAll(AesGcmCrypt.getCiphers());
+        putAll(Chacha20Poly1305Crypt.getCiphers());
         // TODO: other crypts
     }};
+    private static final ConcurrentMap<String, MethodHandle> constructors = new ConcurrentHashMap<>();
     private static Logger logger = Logger.getLogger(CryptFactory.class.getName());
 
     public static boolean isCipherExisted(String name) {
@@ -54,16 +64,29 @@ public class CryptFactory {
 
     public static ICrypt get(String name, String password) {
         try {
-            Object obj = Reflection.get(crypts.get(name), String.class, name, String.class, password);
-            return (ICrypt)obj;
-
-        } catch (Exception e) {
+            return (ICrypt) getConstructor(name).invokeExact(name, password);
+        } catch (Throwable e) {
             logger.info(com.stfl.misc.Util.getErrorMessage(e));
         }
 
         return null;
     }
 
+    /**
+     * Constructor of crypt class, looked up once per cipher
+     */
+    private static MethodHandle getConstructor(String name) throws ReflectiveOperationException {
+        MethodHandle constructor = constructors.get(name);
+        if (constructor == null) {
+            Class<?> clazz = Class.forName(crypts.get(name));
+            constructor = MethodHandles.publicLookup()
+                    .findConstructor(clazz, MethodType.methodType(void.class, String.class, String.class))
+                    .asType(MethodType.methodType(ICrypt.class, String.class, String.class));
+            constructors.putIfAbsent(name, constructor);
+        }
+        return constructor;
+    }
+
     public static List<String> getSupportedCiphers() {
         List sortedKeys = new ArrayList<>(crypts.keySet());
         Collections.sort(sortedKeys);
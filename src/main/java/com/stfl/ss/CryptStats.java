@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time spent in encrypt and decrypt per cipher, shared by all connections using the cipher
+ */
+public class CryptStats {
+    private static final ConcurrentMap<String, CryptStats> _stats = new ConcurrentHashMap<>();
+
+    private final LongAdder _encryptNanos = new LongAdder();
+    private final LongAdder _encryptBytes = new LongAdder();
+    private final LongAdder _decryptNanos = new LongAdder();
+    private final LongAdder _decryptBytes = new LongAdder();
+
+    public static CryptStats get(String name) {
+        CryptStats stats = _stats.get(name);
+        if (stats == null) {
+            CryptStats created = new CryptStats();
+            stats = _stats.putIfAbsent(name, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Nanoseconds per byte of every cipher used so far, for encrypt or decrypt
+     */
+    public static Map<String, Double> getAllNanosPerByte(boolean isEncrypt) {
+        Map<String, Double> result = new TreeMap<>();
+        for (Map.Entry<String, CryptStats> entry : _stats.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getNanosPerByte(isEncrypt));
+        }
+        return result;
+    }
+
+    public void record(boolean isEncrypt, int bytes, long nanos) {
+        if (isEncrypt) {
+            _encryptBytes.add(bytes);
+            _encryptNanos.add(nanos);
+        }
+        else {
+            _decryptBytes.add(bytes);
+            _decryptNanos.add(nanos);
+        }
+    }
+
+    public long getBytes(boolean isEncrypt) {
+        return isEncrypt ? _encryptBytes.sum() : _decryptBytes.sum();
+    }
+
+    public double getNanosPerByte(boolean isEncrypt) {
+        long bytes = getBytes(isEncrypt);
+        long nanos = isEncrypt ? _encryptNanos.sum() : _decryptNanos.sum();
+        return (bytes == 0) ? 0 : (double) nanos / bytes;
+    }
+}
@@ -32,6 +32,7 @@
 package com.stfl.ss;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
@@ -42,6 +43,29 @@ public interface ICrypt {
     void encrypt(byte[] data, int length, ByteArrayOutputStream stream);
     void decrypt(byte[] data, ByteArrayOutputStream stream);
     void decrypt(byte[] data, int length, ByteArrayOutputStream stream);
+
+    /**
+     * Encrypt src into dst, the IV is written in front of the first output.
+     * When src and dst are the same buffer, data between position and limit is replaced by
+     * the output in place, position is kept and limit is moved to the end of the output.
+     * Otherwise src is consumed up to its limit and dst position is advanced.
+     * dst must have room for {@link #getOutputSize(int, boolean)} bytes.
+     */
+    void encrypt(ByteBuffer src, ByteBuffer dst);
+
+    /**
+     * Decrypt src into dst, the IV may arrive split across several calls.
+     * Buffer handling is the same as {@link #encrypt(ByteBuffer, ByteBuffer)}.
+     */
+    void decrypt(ByteBuffer src, ByteBuffer dst);
+
+    int getOutputSize(int length, boolean isEncrypt);
+
+    /**
+     * Give keyed ciphers back for reuse by new connections, the crypt must not be used afterwards
+     */
+    void release();
+
     int getIVLength();
     int getKeyLength();
 }
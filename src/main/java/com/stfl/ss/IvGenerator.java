@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Source of IVs and salts. Each thread owns a DRBG seeded from the system generator and
+ * reseeded on a schedule, and a pool per length is refilled in the background so new
+ * connections take a ready IV instead of waiting on randomness.
+ */
+public class IvGenerator {
+    private static final int POOL_SIZE = 256;
+    private static final int LOW_WATERMARK = POOL_SIZE / 4;
+    private static final int SEED_LENGTH = 32;
+    private static final long RESEED_INTERVAL_BYTES = 1024 * 1024;
+    private static final long RESEED_INTERVAL_MS = 60 * 1000;
+    private static final IvGenerator instance = new IvGenerator();
+
+    private Logger logger = Logger.getLogger(IvGenerator.class.getName());
+    private final SecureRandom _seeder = new SecureRandom();
+    private final ConcurrentMap<Integer, Pool> _pools = new ConcurrentHashMap<>();
+    private final ExecutorService _refiller;
+    private final ThreadLocal<Drbg> _drbg = new ThreadLocal<Drbg>() {
+        @Override
+        protected Drbg initialValue() {
+            return new Drbg();
+        }
+    };
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _refills = new AtomicLong();
+    private final AtomicLong _refillNanos = new AtomicLong();
+    private final AtomicLong _reseeds = new AtomicLong();
+
+    public static IvGenerator getInstance() {
+        return instance;
+    }
+
+    public IvGenerator() {
+        _refiller = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "iv-refill");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Fresh random bytes of the given length, never handed out twice
+     */
+    public byte[] next(int length) {
+        Pool pool = getPool(length);
+        byte[] iv = pool.queue.poll();
+        if (iv != null) {
+            _hits.incrementAndGet();
+            if (pool.depth.decrementAndGet() < LOW_WATERMARK) {
+                scheduleRefill(pool);
+            }
+            return iv;
+        }
+
+        // pool drained, generate inline rather than wait for the refill
+        _misses.incrementAndGet();
+        scheduleRefill(pool);
+        iv = new byte[length];
+        _drbg.get().nextBytes(iv);
+        return iv;
+    }
+
+    /**
+     * Fill the pool for a length ahead of the first connection
+     */
+    public void prefill(int length) {
+        if (length > 0) {
+            Pool pool = getPool(length);
+            if (pool.depth.get() < LOW_WATERMARK) {
+                scheduleRefill(pool);
+            }
+        }
+    }
+
+    public int getPoolDepth() {
+        int depth = 0;
+        for (Pool pool : _pools.values()) {
+            depth += pool.depth.get();
+        }
+        return depth;
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public long getRefills() {
+        return _refills.get();
+    }
+
+    public long getAverageRefillNanos() {
+        long refills = _refills.get();
+        return (refills == 0) ? 0 : _refillNanos.get() / refills;
+    }
+
+    public long getReseeds() {
+        return _reseeds.get();
+    }
+
+    private Pool getPool(int length) {
+        Pool pool = _pools.get(length);
+        if (pool == null) {
+            Pool created = new Pool(length);
+            pool = _pools.putIfAbsent(length, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    private void scheduleRefill(final Pool pool) {
+        if (!pool.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        _refiller.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refill(pool);
+                } finally {
+                    pool.refilling.set(false);
+                }
+            }
+        });
+    }
+
+    private void refill(Pool pool) {
+        long start = System.nanoTime();
+        Drbg drbg = _drbg.get();
+        while (pool.depth.get() < POOL_SIZE) {
+            byte[] iv = new byte[pool.length];
+            drbg.nextBytes(iv);
+            pool.queue.offer(iv);
+            pool.depth.incrementAndGet();
+        }
+        long elapsed = System.nanoTime() - start;
+        _refills.incrementAndGet();
+        _refillNanos.addAndGet(elapsed);
+    }
+
+    private byte[] seed() {
+        byte[] seed = new byte[SEED_LENGTH];
+        synchronized (_seeder) {
+            _seeder.nextBytes(seed);
+        }
+        return seed;
+    }
+
+    private static class Pool {
+        final int length;
+        final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger depth = new AtomicInteger();
+        final AtomicBoolean refilling = new AtomicBoolean();
+
+        Pool(int length) {
+            this.length = length;
+        }
+    }
+
+    /**
+     * Thread confined DRBG, replaced with a freshly seeded one after a byte or time budget
+     */
+    private class Drbg {
+        private SecureRandom _random;
+        private long _bytes;
+        private long _seededAt;
+
+        Drbg() {
+            reseed();
+        }
+
+        void nextBytes(byte[] bytes) {
+            if (_bytes >= RESEED_INTERVAL_BYTES || System.currentTimeMillis() - _seededAt >= RESEED_INTERVAL_MS) {
+                reseed();
+                _reseeds.incrementAndGet();
+            }
+            _random.nextBytes(bytes);
+            _bytes += bytes.length;
+        }
+
+        private void reseed() {
+            try {
+                // seeding before first use makes SHA1PRNG rely on our seed only
+                _random = SecureRandom.getInstance("SHA1PRNG");
+                _random.setSeed(seed());
+            } catch (NoSuchAlgorithmException e) {
+                logger.warning("SHA1PRNG not available, using system generator: " + e.toString());
+                _random = new SecureRandom();
+            }
+            _bytes = 0;
+            _seededAt = System.currentTimeMillis();
+        }
+    }
+}
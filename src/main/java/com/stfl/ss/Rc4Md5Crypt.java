@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RC4-MD5 Crypt implementation, RC4 key is md5(key + IV)
+ */
+public class Rc4Md5Crypt extends CryptBase {
+
+    public final static String CIPHER_RC4_MD5 = "rc4-md5";
+
+    public static Map<String, String> getCiphers() {
+        Map<String, String> ciphers = new HashMap<>();
+        ciphers.put(CIPHER_RC4_MD5, Rc4Md5Crypt.class.getName());
+
+        return ciphers;
+    }
+
+    public Rc4Md5Crypt(String name, String password) {
+        super(name, password);
+    }
+
+    @Override
+    public int getKeyLength() {
+        return 16;
+    }
+
+    @Override
+    public int getIVLength() {
+        return 16;
+    }
+
+    @Override
+    protected SecretKey getKey() {
+        return new SecretKeySpec(_ssKey.getEncoded(), "RC4");
+    }
+
+    @Override
+    protected void _encrypt(ByteBuffer src, ByteBuffer dst) {
+        processEncrypt(src, dst);
+    }
+
+    @Override
+    protected void _decrypt(ByteBuffer src, ByteBuffer dst) {
+        processDecrypt(src, dst);
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss.backend;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Full block CFB/OFB/CTR over any block cipher. Whole blocks are encrypted once and XORed
+ * with {@link XorKernel}, OFB/CTR key stream is made several blocks at a time. A partial
+ * block is kept across calls and finished byte by byte.
+ * Large CFB decrypt calls are split across a ForkJoinPool, see
+ * {@link CipherBackendFactory#setParallelDecryptThreshold(int)}.
+ */
+class BlockModeCipher implements IStreamCipher {
+    private static final int WORD_SIZE = 8;
+    private static final int KEY_STREAM_BLOCKS = 64;
+    // relay reads are at most Constant.BUFFER_SIZE (16KB), so one can still be split
+    private static final int MIN_SEGMENT_SIZE = 4 * 1024;
+
+    private final String _cipherName;
+    private final byte[] _key;
+    private final BlockCipher _engine;
+    private final boolean _isCfb;
+    private final boolean _isOfb;
+    private final boolean _isEncrypt;
+    private final int _blockSize;
+    private final XorKernel _xor = XorKernel.get();
+    // last block fed back, cipher text for CFB and key stream for OFB, counter for CTR
+    private final byte[] _register;
+    private final byte[] _keyStream;
+    private final ByteBuffer _registerWords;
+    private final ByteBuffer _keyStreamWords;
+    // _keyStream[_offset, _keyStreamLength) is not used yet
+    private int _offset;
+    private int _keyStreamLength;
+    // keyed engines of the parallel segments, engines are not thread safe
+    private BlockCipher[] _segmentEngines;
+    // key stream of a parallel decrypt call
+    private byte[] _segmentKeyStream;
+    private ByteBuffer _segmentKeyStreamWords;
+
+    public BlockModeCipher(String cipherName, byte[] key, byte[] iv, boolean isEncrypt) {
+        _cipherName = cipherName;
+        _key = key.clone();
+        _engine = BouncyCastleBackend.getEngine(cipherName);
+        _isCfb = cipherName.endsWith("-cfb");
+        _isOfb = cipherName.endsWith("-ofb");
+        _isEncrypt = isEncrypt;
+        _blockSize = _engine.getBlockSize();
+        _register = new byte[_blockSize];
+        // CFB needs the previous block before the next key stream block
+        _keyStream = new byte[_isCfb ? _blockSize : _blockSize * KEY_STREAM_BLOCKS];
+        _registerWords = ByteBuffer.wrap(_register).order(ByteOrder.nativeOrder());
+        _keyStreamWords = ByteBuffer.wrap(_keyStream).order(ByteOrder.nativeOrder());
+        // all modes only run the forward cipher
+        _engine.init(true, new KeyParameter(_key));
+        init(iv);
+    }
+
+    static boolean isSupported(String cipherName) {
+        return cipherName.endsWith("-cfb") || cipherName.endsWith("-ofb") || cipherName.endsWith("-ctr");
+    }
+
+    @Override
+    public void init(byte[] iv) {
+        System.arraycopy(iv, 0, _register, 0, _blockSize);
+        _offset = 0;
+        _keyStreamLength = 0;
+    }
+
+    @Override
+    public void process(ByteBuffer src, ByteBuffer dst) {
+        ByteBuffer in = src.duplicate().order(ByteOrder.nativeOrder());
+        ByteBuffer out = dst.duplicate().order(ByteOrder.nativeOrder());
+        int inPos = in.position();
+        int outPos = out.position();
+        int length = in.remaining();
+
+        // rest of the current block
+        while ((length > 0) && (_offset < _keyStreamLength)) {
+            processByte(in, inPos++, out, outPos++);
+            length--;
+        }
+
+        int threshold = CipherBackendFactory.getParallelDecryptThreshold();
+        // tasks run on the caller's pool if there is one
+        ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : CipherWorkers.pool;
+        if (!_isEncrypt && _isCfb && (threshold > 0) && (length >= Math.max(threshold, 2 * MIN_SEGMENT_SIZE))
+                && (pool.getParallelism() > 1)) {
+            int blocks = length - (length % _blockSize);
+            decryptParallel(pool, in, inPos, out, outPos, blocks);
+            inPos += blocks;
+            outPos += blocks;
+            length -= blocks;
+        }
+
+        while (length >= _blockSize) {
+            int blocks = _isCfb ? 1 : Math.min(length / _blockSize, KEY_STREAM_BLOCKS);
+            int n = blocks * _blockSize;
+            nextKeyStream(blocks);
+            // in place output would overwrite the cipher text fed back on decrypt
+            if (_isCfb && !_isEncrypt) {
+                copyBlock(in, inPos, _registerWords);
+            }
+            _xor.xor(in, inPos, _keyStreamWords, 0, out, outPos, n);
+            if (_isCfb && _isEncrypt) {
+                copyBlock(out, outPos, _registerWords);
+            }
+            _offset = n;
+            inPos += n;
+            outPos += n;
+            length -= n;
+        }
+
+        if (length > 0) {
+            nextKeyStream(1);
+            while (length > 0) {
+                processByte(in, inPos++, out, outPos++);
+                length--;
+            }
+        }
+
+        src.position(inPos);
+        dst.position(outPos);
+    }
+
+    /**
+     * Each CFB key stream block is the encrypted cipher text block in front of it, so the key
+     * stream is made by segments in parallel. Output is only written afterwards in one pass,
+     * like the serial path it may share memory with the input at any offset behind it,
+     * e.g. in place after the IV has been consumed
+     */
+    private void decryptParallel(ForkJoinPool pool, ByteBuffer in, int inPos, ByteBuffer out, int outPos, int length) {
+        int blocks = length / _blockSize;
+        int segments = Math.min(pool.getParallelism(), length / MIN_SEGMENT_SIZE);
+        int segmentBlocks = (blocks + segments - 1) / segments;
+        segments = (blocks + segmentBlocks - 1) / segmentBlocks;
+
+        if ((_segmentEngines == null) || (_segmentEngines.length < segments)) {
+            BlockCipher[] engines = new BlockCipher[segments];
+            if (_segmentEngines != null) {
+                System.arraycopy(_segmentEngines, 0, engines, 0, _segmentEngines.length);
+            }
+            _segmentEngines = engines;
+        }
+        if ((_segmentKeyStream == null) || (_segmentKeyStream.length < length)) {
+            _segmentKeyStream = new byte[length];
+            _segmentKeyStreamWords = ByteBuffer.wrap(_segmentKeyStream).order(ByteOrder.nativeOrder());
+        }
+
+        SegmentKeyStream[] tasks = new SegmentKeyStream[segments];
+        for (int i = 0; i < segments; i++) {
+            int start = i * segmentBlocks * _blockSize;
+            int end = Math.min(length, start + segmentBlocks * _blockSize);
+            if (_segmentEngines[i] == null) {
+                _segmentEngines[i] = BouncyCastleBackend.getEngine(_cipherName);
+                _segmentEngines[i].init(true, new KeyParameter(_key));
+            }
+            // first segment is fed back from the previous call
+            byte[] register = (i == 0) ? _register.clone() : null;
+            tasks[i] = new SegmentKeyStream(_segmentEngines[i], register, in, inPos + start, _segmentKeyStream, start, end - start);
+        }
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+        }
+        else {
+            for (int i = 1; i < segments; i++) {
+                pool.execute(tasks[i]);
+            }
+            tasks[0].invoke();
+            for (int i = 1; i < segments; i++) {
+                tasks[i].join();
+            }
+        }
+
+        // last cipher text block is fed back to the next call, read it before it is overwritten
+        for (int j = 0; j < _blockSize; j++) {
+            _register[j] = in.get(inPos + length - _blockSize + j);
+        }
+        _xor.xor(in, inPos, _segmentKeyStreamWords, 0, out, outPos, length);
+        _offset = 0;
+        _keyStreamLength = 0;
+    }
+
+    private void nextKeyStream(int blocks) {
+        for (int offset = 0; offset < blocks * _blockSize; offset += _blockSize) {
+            _engine.processBlock(_register, 0, _keyStream, offset);
+            if (_isOfb) {
+                System.arraycopy(_keyStream, offset, _register, 0, _blockSize);
+            }
+            else if (!_isCfb) {
+                // whole block is a big endian counter
+                for (int i = _blockSize - 1; i >= 0; i--) {
+                    if (++_register[i] != 0) {
+                        break;
+                    }
+                }
+            }
+        }
+        _offset = 0;
+        _keyStreamLength = blocks * _blockSize;
+    }
+
+    private static void copyBlock(ByteBuffer src, int position, ByteBuffer block) {
+        for (int i = 0; i < block.capacity(); i += WORD_SIZE) {
+            block.putLong(i, src.getLong(position + i));
+        }
+    }
+
+    private void processByte(ByteBuffer in, int inPos, ByteBuffer out, int outPos) {
+        byte input = in.get(inPos);
+        byte output = (byte) (input ^ _keyStream[_offset]);
+        out.put(outPos, output);
+        if (_isCfb) {
+            _register[_offset] = _isEncrypt ? output : input;
+        }
+        _offset++;
+    }
+
+    /**
+     * Key stream of a segment, only reads the cipher text
+     */
+    private static class SegmentKeyStream extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BlockCipher _engine;
+        private final byte[] _register;
+        private final ByteBuffer _in;
+        private final int _inPos;
+        private final byte[] _keyStream;
+        private final int _keyStreamPos;
+        private final int _length;
+
+        /**
+         * Register is the feedback block of the first key stream block, null to take the
+         * cipher text block in front of the segment
+         */
+        public SegmentKeyStream(BlockCipher engine, byte[] register, ByteBuffer in, int inPos, byte[] keyStream, int keyStreamPos, int length) {
+            _engine = engine;
+            _register = register;
+            _in = in;
+            _inPos = inPos;
+            _keyStream = keyStream;
+            _keyStreamPos = keyStreamPos;
+            _length = length;
+        }
+
+        @Override
+        protected void compute() {
+            int blockSize = _engine.getBlockSize();
+            byte[] block = new byte[blockSize];
+            ByteBuffer blockWords = ByteBuffer.wrap(block).order(ByteOrder.nativeOrder());
+            if (_register != null) {
+                System.arraycopy(_register, 0, block, 0, blockSize);
+            }
+            else {
+                copyBlock(_in, _inPos - blockSize, blockWords);
+            }
+
+            for (int offset = 0; offset < _length; offset += blockSize) {
+                _engine.processBlock(block, 0, _keyStream, _keyStreamPos + offset);
+                copyBlock(_in, _inPos + offset, blockWords);
+            }
+        }
+    }
+}
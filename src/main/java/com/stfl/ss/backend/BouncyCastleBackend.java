@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss.backend;
+
+import org.bouncycastle.crypto.BlockCipher;
+import com.stfl.ss.ChaCha7539Engine;
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.engines.BlowfishEngine;
+import org.bouncycastle.crypto.engines.CamelliaEngine;
+import org.bouncycastle.crypto.engines.ChaChaEngine;
+import org.bouncycastle.crypto.engines.RC4Engine;
+import org.bouncycastle.crypto.engines.SEEDEngine;
+import org.bouncycastle.crypto.engines.Salsa20Engine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * BouncyCastle cipher backend, supports all stream ciphers
+ */
+public class BouncyCastleBackend implements ICipherBackend {
+    public static final String NAME = "bc";
+    private static final String CIPHER_CHACHA20 = "chacha20";
+    private static final String CIPHER_CHACHA20_IETF = "chacha20-ietf";
+    private static final String CIPHER_SALSA20 = "salsa20";
+    private static final String CIPHER_RC4_MD5 = "rc4-md5";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isSupported(String cipherName) {
+        if (cipherName.equals(CIPHER_CHACHA20) || cipherName.equals(CIPHER_CHACHA20_IETF)
+                || cipherName.equals(CIPHER_SALSA20) || cipherName.equals(CIPHER_RC4_MD5)) {
+            return true;
+        }
+        return (getEngine(cipherName) != null) && BlockModeCipher.isSupported(cipherName);
+    }
+
+    @Override
+    public IStreamCipher getCipher(String cipherName, byte[] key, byte[] iv, boolean isEncrypt) throws NoSuchAlgorithmException {
+        ParametersWithIV parameters = new ParametersWithIV(new KeyParameter(key), iv);
+
+        // key stream ciphers are used a block at a time
+        if (cipherName.equals(CIPHER_CHACHA20)) {
+            ChaChaBlockEngine engine = new ChaChaBlockEngine();
+            engine.init(isEncrypt, parameters);
+            return new KeyStreamCipher(engine);
+        }
+        else if (cipherName.equals(CIPHER_CHACHA20_IETF)) {
+            ChaCha7539BlockEngine engine = new ChaCha7539BlockEngine();
+            engine.init(isEncrypt, parameters);
+            return new KeyStreamCipher(engine);
+        }
+        else if (cipherName.equals(CIPHER_SALSA20)) {
+            Salsa20BlockEngine engine = new Salsa20BlockEngine();
+            engine.init(isEncrypt, parameters);
+            return new KeyStreamCipher(engine);
+        }
+        else if (cipherName.equals(CIPHER_RC4_MD5)) {
+            Rc4Md5Cipher cipher = new Rc4Md5Cipher(new RC4Engine(), key, isEncrypt);
+            cipher.init(iv);
+            return cipher;
+        }
+
+        if ((getEngine(cipherName) != null) && BlockModeCipher.isSupported(cipherName)) {
+            return new BlockModeCipher(cipherName, key, iv, isEncrypt);
+        }
+
+        throw new NoSuchAlgorithmException(cipherName);
+    }
+
+    static BlockCipher getEngine(String cipherName) {
+        if (cipherName.startsWith("aes-")) {
+            return new AESFastEngine();
+        }
+        else if (cipherName.startsWith("camellia-")) {
+            return new CamelliaEngine();
+        }
+        else if (cipherName.startsWith("bf-")) {
+            return new BlowfishEngine();
+        }
+        else if (cipherName.startsWith("seed-")) {
+            return new SEEDEngine();
+        }
+
+        return null;
+    }
+
+    private static class BouncyCastleCipher implements IStreamCipher {
+        private static final int CHUNK_SIZE = 4096;
+
+        protected final StreamCipher _cipher;
+        protected final boolean _isEncrypt;
+        private byte[] _chunk;
+
+        public BouncyCastleCipher(StreamCipher cipher, boolean isEncrypt) {
+            _cipher = cipher;
+            _isEncrypt = isEncrypt;
+        }
+
+        @Override
+        public void init(byte[] iv) {
+            // no key parameter, mode restarts from the IV with the expanded key of the engine
+            _cipher.init(_isEncrypt, new ParametersWithIV(null, iv));
+        }
+
+        @Override
+        public void process(ByteBuffer src, ByteBuffer dst) {
+            int length = src.remaining();
+
+            if (src.hasArray() && dst.hasArray()) {
+                _cipher.processBytes(src.array(), src.arrayOffset() + src.position(), length,
+                        dst.array(), dst.arrayOffset() + dst.position());
+                src.position(src.limit());
+                dst.position(dst.position() + length);
+                return;
+            }
+
+            // direct buffers, go through a small array
+            if (_chunk == null) {
+                _chunk = new byte[CHUNK_SIZE];
+            }
+            while (src.hasRemaining()) {
+                int n = Math.min(src.remaining(), _chunk.length);
+                src.get(_chunk, 0, n);
+                _cipher.processBytes(_chunk, 0, n, _chunk, 0);
+                dst.put(_chunk, 0, n);
+            }
+        }
+    }
+
+    /**
+     * RC4 key is md5(key + iv), so each IV needs a new key schedule
+     */
+    private static class Rc4Md5Cipher extends BouncyCastleCipher {
+        private final byte[] _key;
+
+        public Rc4Md5Cipher(StreamCipher cipher, byte[] key, boolean isEncrypt) {
+            super(cipher, isEncrypt);
+            _key = key.clone();
+        }
+
+        @Override
+        public void init(byte[] iv) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("MD5");
+                md.update(_key);
+                md.update(iv);
+                _cipher.init(_isEncrypt, new KeyParameter(md.digest()));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class ChaChaBlockEngine extends ChaChaEngine implements KeyStreamCipher.IBlockSource {
+        @Override
+        public void nextBlock(byte[] block) {
+            generateKeyStream(block);
+            advanceCounter();
+        }
+    }
+
+    private static class ChaCha7539BlockEngine extends ChaCha7539Engine implements KeyStreamCipher.IBlockSource {
+        @Override
+        public void nextBlock(byte[] block) {
+            generateKeyStream(block);
+            advanceCounter();
+        }
+    }
+
+    private static class Salsa20BlockEngine extends Salsa20Engine implements KeyStreamCipher.IBlockSource {
+        @Override
+        public void nextBlock(byte[] block) {
+            generateKeyStream(block);
+            advanceCounter();
+        }
+    }
+}
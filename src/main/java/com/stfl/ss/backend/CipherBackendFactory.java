@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss.backend;
+
+import com.stfl.misc.Config;
+import com.stfl.misc.Util;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Cipher backend factory, picks the fastest backend producing correct output per cipher
+ * unless a backend is pinned
+ */
+public class CipherBackendFactory {
+    public static final String AUTO = "auto";
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    private static final int CALIBRATION_ROUNDS = 64;
+
+    private static Logger logger = Logger.getLogger(CipherBackendFactory.class.getName());
+    private static final List<ICipherBackend> backends = loadBackends();
+    private static final ConcurrentMap<String, ICipherBackend> selected = new ConcurrentHashMap<>();
+    private static volatile String preferred = AUTO;
+    private static volatile int parallelDecryptThreshold;
+    private static volatile int keyStreamLookahead;
+
+    private static List<ICipherBackend> loadBackends() {
+        List<ICipherBackend> list = new ArrayList<>();
+        for (ICipherBackend backend : ServiceLoader.load(ICipherBackend.class)) {
+            list.add(backend);
+        }
+        if (list.isEmpty()) {
+            // e.g. services file is missing from a repackaged jar
+            list.add(new BouncyCastleBackend());
+        }
+        return list;
+    }
+
+    /**
+     * Pin backend by name, AUTO selects by calibration
+     */
+    public static void setPreferred(String name) {
+        String value = (name == null) ? AUTO : name.toLowerCase();
+        if (!value.equals(preferred)) {
+            preferred = value;
+            selected.clear();
+        }
+    }
+
+    public static String getPreferred() {
+        return preferred;
+    }
+
+    /**
+     * CFB decrypt calls of at least this many bytes are split across cores, 0 disables
+     */
+    public static void setParallelDecryptThreshold(int bytes) {
+        parallelDecryptThreshold = bytes;
+    }
+
+    public static int getParallelDecryptThreshold() {
+        return parallelDecryptThreshold;
+    }
+
+    /**
+     * Bytes of OFB/CTR key stream generated ahead per cipher, 0 disables
+     */
+    public static void setKeyStreamLookahead(int bytes) {
+        keyStreamLookahead = bytes;
+    }
+
+    public static int getKeyStreamLookahead() {
+        return keyStreamLookahead;
+    }
+
+    /**
+     * Apply the backend settings of a config, done by servers before their first cipher is keyed
+     */
+    public static void configure(Config config) {
+        setPreferred(config.getCipherBackend());
+        setParallelDecryptThreshold(config.getParallelDecryptThreshold());
+        setKeyStreamLookahead(config.getKeyStreamLookahead());
+    }
+
+    public static List<String> getBackendNames() {
+        List<String> names = new ArrayList<>();
+        for (ICipherBackend backend : backends) {
+            names.add(backend.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Backend for a cipher, selected on first use
+     */
+    public static ICipherBackend get(String cipherName, int keyLength, int ivLength) {
+        ICipherBackend backend = selected.get(cipherName);
+        if (backend == null) {
+            backend = select(cipherName, keyLength, ivLength);
+            ICipherBackend put = selected.putIfAbsent(cipherName, backend);
+            if (put != null) {
+                backend = put;
+            }
+        }
+        return backend;
+    }
+
+    private static ICipherBackend select(String cipherName, int keyLength, int ivLength) {
+        List<ICipherBackend> candidates = new ArrayList<>();
+        for (ICipherBackend backend : backends) {
+            if (backend.isSupported(cipherName)) {
+                if (backend.getName().equals(preferred)) {
+                    return backend;
+                }
+                candidates.add(backend);
+            }
+        }
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("No cipher backend for " + cipherName);
+        }
+        if (!preferred.equals(AUTO)) {
+            logger.warning("Cipher backend " + preferred + " does not support " + cipherName + ", selecting automatically");
+        }
+
+        // the first backend found gives the reference output
+        Random random = new Random();
+        byte[] key = new byte[keyLength];
+        byte[] iv = new byte[ivLength];
+        byte[] sample = new byte[SAMPLE_SIZE];
+        random.nextBytes(key);
+        random.nextBytes(iv);
+        random.nextBytes(sample);
+        byte[] expected = null;
+        ICipherBackend best = null;
+        long bestTime = Long.MAX_VALUE;
+
+        for (ICipherBackend backend : candidates) {
+            try {
+                byte[] output = encrypt(backend, cipherName, key, iv, sample);
+                if (expected == null) {
+                    expected = output;
+                }
+                if (!Arrays.equals(expected, output) || !Arrays.equals(sample, decrypt(backend, cipherName, key, iv, output))) {
+                    logger.warning("Cipher backend " + backend.getName() + " gives wrong output for " + cipherName);
+                    continue;
+                }
+
+                long time = measure(backend, cipherName, key, iv, sample);
+                logger.fine("Cipher backend " + backend.getName() + " " + cipherName + ": " + time / 1000 + "us");
+                if (time < bestTime) {
+                    bestTime = time;
+                    best = backend;
+                }
+            } catch (Exception e) {
+                logger.info("Cipher backend " + backend.getName() + " failed on " + cipherName + ": " + Util.getErrorMessage(e));
+            }
+        }
+
+        if (best == null) {
+            best = candidates.get(0);
+        }
+        logger.info("Cipher backend for " + cipherName + ": " + best.getName());
+        return best;
+    }
+
+    private static byte[] encrypt(ICipherBackend backend, String cipherName, byte[] key, byte[] iv, byte[] data) throws Exception {
+        return run(backend.getCipher(cipherName, key, iv, true), data);
+    }
+
+    private static byte[] decrypt(ICipherBackend backend, String cipherName, byte[] key, byte[] iv, byte[] data) throws Exception {
+        return run(backend.getCipher(cipherName, key, iv, false), data);
+    }
+
+    /**
+     * Feed data in uneven pieces through heap and direct buffers, output is compared between backends
+     */
+    private static byte[] run(IStreamCipher cipher, byte[] data) {
+        byte[] output = new byte[data.length];
+        int position = 0;
+        int piece = 1;
+        while (position < data.length) {
+            int length = Math.min(piece, data.length - position);
+            ByteBuffer src;
+            if ((piece & 1) == 0) {
+                src = ByteBuffer.allocateDirect(length);
+                src.put(data, position, length).flip();
+            }
+            else {
+                src = ByteBuffer.wrap(data, position, length).slice();
+            }
+            ByteBuffer dst = ByteBuffer.allocate(length);
+            cipher.process(src, dst);
+            System.arraycopy(dst.array(), 0, output, position, length);
+            position += length;
+            piece = piece * 3 + 1;
+        }
+        return output;
+    }
+
+    private static long measure(ICipherBackend backend, String cipherName, byte[] key, byte[] iv, byte[] sample) throws Exception {
+        IStreamCipher cipher = backend.getCipher(cipherName, key, iv, true);
+        ByteBuffer src = ByteBuffer.allocateDirect(sample.length);
+        ByteBuffer dst = ByteBuffer.allocateDirect(sample.length);
+        long best = Long.MAX_VALUE;
+        // first rounds warm up the JIT
+        for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+            src.clear();
+            dst.clear();
+            long start = System.nanoTime();
+            cipher.process(src, dst);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
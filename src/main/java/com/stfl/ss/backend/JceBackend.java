@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss.backend;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * JCE cipher backend for AES CFB, OFB and CTR, uses AES-NI through the JVM intrinsics when available
+ */
+public class JceBackend implements ICipherBackend {
+    public static final String NAME = "jce";
+    private static final int BLOCK_SIZE = 16;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isSupported(String cipherName) {
+        return (getTransformation(cipherName) != null);
+    }
+
+    @Override
+    public IStreamCipher getCipher(String cipherName, byte[] key, byte[] iv, boolean isEncrypt) throws GeneralSecurityException {
+        String transformation = getTransformation(cipherName);
+        if (transformation == null) {
+            throw new NoSuchAlgorithmException(cipherName);
+        }
+        if (cipherName.endsWith("-ctr")) {
+            return new JceCtrCipher(transformation, key, iv, isEncrypt);
+        }
+        return new JceCipher(transformation, cipherName.endsWith("-ofb"), key, iv, isEncrypt);
+    }
+
+    private String getTransformation(String cipherName) {
+        if (!cipherName.startsWith("aes-")) {
+            return null;
+        }
+        if (cipherName.endsWith("-cfb")) {
+            return "AES/CFB/NoPadding";
+        }
+        else if (cipherName.endsWith("-ofb")) {
+            return "AES/OFB/NoPadding";
+        }
+        else if (cipherName.endsWith("-ctr")) {
+            return "AES/CTR/NoPadding";
+        }
+        return null;
+    }
+
+    /**
+     * JCE only processes whole blocks in CFB/OFB mode, a trailing partial block is handled here
+     * with the key stream from ECB and the cipher is restarted from the next block boundary
+     */
+    private static class JceCipher implements IStreamCipher {
+        private final Cipher _cipher;
+        private final Cipher _ecb;
+        private final SecretKeySpec _key;
+        private final int _mode;
+        private final boolean _isOfb;
+        private final boolean _isEncrypt;
+        // last block fed back, cipher text for CFB and key stream for OFB
+        private final byte[] _register = new byte[BLOCK_SIZE];
+        private final byte[] _keyStream = new byte[BLOCK_SIZE];
+        private final byte[] _lastInput = new byte[BLOCK_SIZE];
+        // bytes of _keyStream used, 0 at block boundary
+        private int _offset;
+
+        public JceCipher(String transformation, boolean isOfb, byte[] key, byte[] iv, boolean isEncrypt) throws GeneralSecurityException {
+            _key = new SecretKeySpec(key, "AES");
+            _mode = isEncrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+            _isOfb = isOfb;
+            _isEncrypt = isEncrypt;
+            System.arraycopy(iv, 0, _register, 0, BLOCK_SIZE);
+            _cipher = Cipher.getInstance(transformation);
+            _cipher.init(_mode, _key, new IvParameterSpec(_register));
+            _ecb = Cipher.getInstance("AES/ECB/NoPadding");
+            _ecb.init(Cipher.ENCRYPT_MODE, _key);
+        }
+
+        @Override
+        public void init(byte[] iv) {
+            System.arraycopy(iv, 0, _register, 0, BLOCK_SIZE);
+            _offset = 0;
+            try {
+                // provider keeps the expanded key when the same key is given again
+                _cipher.init(_mode, _key, new IvParameterSpec(_register));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void process(ByteBuffer src, ByteBuffer dst) {
+            try {
+                if (_offset > 0) {
+                    processPartial(src, dst);
+                }
+
+                int length = src.remaining() & ~(BLOCK_SIZE - 1);
+                if (length > 0) {
+                    // in place output would overwrite the last input block
+                    int last = src.position() + length - BLOCK_SIZE;
+                    for (int i = 0; i < BLOCK_SIZE; i++) {
+                        _lastInput[i] = src.get(last + i);
+                    }
+
+                    ByteBuffer in = src.duplicate();
+                    in.limit(src.position() + length);
+                    _cipher.update(in, dst);
+                    src.position(src.position() + length);
+
+                    int lastOutput = dst.position() - BLOCK_SIZE;
+                    for (int i = 0; i < BLOCK_SIZE; i++) {
+                        byte output = dst.get(lastOutput + i);
+                        if (_isOfb) {
+                            _register[i] = (byte) (_lastInput[i] ^ output);
+                        }
+                        else {
+                            _register[i] = _isEncrypt ? output : _lastInput[i];
+                        }
+                    }
+                }
+
+                if (src.hasRemaining()) {
+                    _ecb.update(_register, 0, BLOCK_SIZE, _keyStream, 0);
+                    if (_isOfb) {
+                        System.arraycopy(_keyStream, 0, _register, 0, BLOCK_SIZE);
+                    }
+                    processPartial(src, dst);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void processPartial(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+            while ((_offset < BLOCK_SIZE) && src.hasRemaining()) {
+                byte input = src.get();
+                byte output = (byte) (input ^ _keyStream[_offset]);
+                dst.put(output);
+                if (!_isOfb) {
+                    _register[_offset] = _isEncrypt ? output : input;
+                }
+                _offset++;
+            }
+
+            if (_offset == BLOCK_SIZE) {
+                // block completed, continue whole blocks from here
+                _offset = 0;
+                _cipher.init(_mode, _key, new IvParameterSpec(_register));
+            }
+        }
+    }
+
+    /**
+     * CTR in JCE keeps a partial block across updates itself
+     */
+    private static class JceCtrCipher implements IStreamCipher {
+        private final Cipher _cipher;
+        private final SecretKeySpec _key;
+        private final int _mode;
+
+        public JceCtrCipher(String transformation, byte[] key, byte[] iv, boolean isEncrypt) throws GeneralSecurityException {
+            _key = new SecretKeySpec(key, "AES");
+            _mode = isEncrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+            _cipher = Cipher.getInstance(transformation);
+            _cipher.init(_mode, _key, new IvParameterSpec(iv, 0, BLOCK_SIZE));
+        }
+
+        @Override
+        public void init(byte[] iv) {
+            try {
+                _cipher.init(_mode, _key, new IvParameterSpec(iv, 0, BLOCK_SIZE));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void process(ByteBuffer src, ByteBuffer dst) {
+            try {
+                _cipher.update(src, dst);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
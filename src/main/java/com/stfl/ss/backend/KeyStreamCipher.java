@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss.backend;
+
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Stream cipher consuming whole 64 byte key stream blocks, for ChaCha and Salsa20
+ */
+class KeyStreamCipher implements IStreamCipher {
+    static final int BLOCK_SIZE = 64;
+    private static final int KEY_STREAM_BLOCKS = 16;
+
+    /**
+     * Source of key stream, each call gives the next block
+     */
+    interface IBlockSource extends StreamCipher {
+        void nextBlock(byte[] block);
+    }
+
+    private final IBlockSource _source;
+    private final XorKernel _xor = XorKernel.get();
+    private final byte[] _block = new byte[BLOCK_SIZE];
+    private final byte[] _keyStream = new byte[BLOCK_SIZE * KEY_STREAM_BLOCKS];
+    private final ByteBuffer _keyStreamWords = ByteBuffer.wrap(_keyStream).order(ByteOrder.nativeOrder());
+    // _keyStream[_offset, _keyStreamLength) is not used yet
+    private int _offset;
+    private int _keyStreamLength;
+
+    public KeyStreamCipher(IBlockSource source) {
+        _source = source;
+    }
+
+    @Override
+    public void init(byte[] iv) {
+        // no key parameter, engine keeps the current key
+        _source.init(true, new ParametersWithIV(null, iv));
+        _offset = 0;
+        _keyStreamLength = 0;
+    }
+
+    @Override
+    public void process(ByteBuffer src, ByteBuffer dst) {
+        ByteBuffer in = src.duplicate().order(ByteOrder.nativeOrder());
+        ByteBuffer out = dst.duplicate().order(ByteOrder.nativeOrder());
+        int inPos = in.position();
+        int outPos = out.position();
+        int length = in.remaining();
+
+        while (length > 0) {
+            if (_offset == _keyStreamLength) {
+                // enough blocks for the data, rest of the last block is kept for the next call
+                int blocks = Math.min((length + BLOCK_SIZE - 1) / BLOCK_SIZE, KEY_STREAM_BLOCKS);
+                for (int i = 0; i < blocks; i++) {
+                    _source.nextBlock(_block);
+                    System.arraycopy(_block, 0, _keyStream, i * BLOCK_SIZE, BLOCK_SIZE);
+                }
+                _offset = 0;
+                _keyStreamLength = blocks * BLOCK_SIZE;
+            }
+
+            int n = Math.min(length, _keyStreamLength - _offset);
+            _xor.xor(in, inPos, _keyStreamWords, _offset, out, outPos, n);
+            _offset += n;
+            inPos += n;
+            outPos += n;
+            length -= n;
+        }
+
+        src.position(inPos);
+        dst.position(outPos);
+    }
+}
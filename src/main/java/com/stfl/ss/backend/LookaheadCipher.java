@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss.backend;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * OFB/CTR key stream does not depend on the data, so it is generated ahead on a worker
+ * thread into a bounded buffer and arriving data only costs an XOR
+ */
+public class LookaheadCipher implements IStreamCipher {
+    private final IStreamCipher _cipher;
+    private final XorKernel _xor = XorKernel.get();
+    private final byte[] _keyStream;
+    private final ByteBuffer _keyStreamWords;
+    private final Lock _lock = new ReentrantLock();
+    private final AtomicBoolean _refillScheduled = new AtomicBoolean();
+    private final Runnable _refill = new Runnable() {
+        @Override
+        public void run() {
+            _refillScheduled.set(false);
+            // connection is busy with its own data, it will ask again
+            if (_lock.tryLock()) {
+                try {
+                    refill();
+                } finally {
+                    _lock.unlock();
+                }
+            }
+        }
+    };
+    // key stream ready to use is _keyStream[_start, _end)
+    private int _start;
+    private int _end;
+
+    public static boolean isSupported(String cipherName) {
+        return cipherName.endsWith("-ofb") || cipherName.endsWith("-ctr");
+    }
+
+    public LookaheadCipher(IStreamCipher cipher, int lookahead) {
+        _cipher = cipher;
+        _keyStream = new byte[lookahead];
+        _keyStreamWords = ByteBuffer.wrap(_keyStream).order(ByteOrder.nativeOrder());
+        scheduleRefill();
+    }
+
+    @Override
+    public void init(byte[] iv) {
+        _lock.lock();
+        try {
+            _cipher.init(iv);
+            _start = 0;
+            _end = 0;
+        } finally {
+            _lock.unlock();
+        }
+        scheduleRefill();
+    }
+
+    @Override
+    public void process(ByteBuffer src, ByteBuffer dst) {
+        boolean low;
+        _lock.lock();
+        try {
+            int length = Math.min(src.remaining(), _end - _start);
+            if (length > 0) {
+                xor(src, dst, length);
+            }
+            // buffer is used up, the cipher continues right after it
+            if (src.hasRemaining()) {
+                _cipher.process(src, dst);
+            }
+            low = (_end - _start) <= _keyStream.length / 2;
+        } finally {
+            _lock.unlock();
+        }
+
+        if (low) {
+            scheduleRefill();
+        }
+    }
+
+    private void xor(ByteBuffer src, ByteBuffer dst, int length) {
+        ByteBuffer in = src.duplicate().order(ByteOrder.nativeOrder());
+        ByteBuffer out = dst.duplicate().order(ByteOrder.nativeOrder());
+        int inPos = in.position();
+        int outPos = out.position();
+
+        _xor.xor(in, inPos, _keyStreamWords, _start, out, outPos, length);
+        _start += length;
+        src.position(inPos + length);
+        dst.position(outPos + length);
+    }
+
+    private void scheduleRefill() {
+        if (_refillScheduled.compareAndSet(false, true)) {
+            CipherWorkers.pool.execute(_refill);
+        }
+    }
+
+    private void refill() {
+        int remaining = _end - _start;
+        if (remaining > _keyStream.length / 2) {
+            return;
+        }
+        System.arraycopy(_keyStream, _start, _keyStream, 0, remaining);
+        _start = 0;
+        _end = remaining;
+
+        // key stream is the cipher output of zeros
+        Arrays.fill(_keyStream, _end, _keyStream.length, (byte) 0);
+        ByteBuffer free = ByteBuffer.wrap(_keyStream, _end, _keyStream.length - _end);
+        _cipher.process(free.duplicate(), free);
+        _end = _keyStream.length;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss.backend;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * XOR of data with key stream, the implementations are picked at startup by timing
+ */
+abstract class XorKernel {
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    private static final int WARMUP_ROUNDS = 1024;
+    private static final int CALIBRATION_ROUNDS = 256;
+    private static Logger logger = Logger.getLogger(XorKernel.class.getName());
+    private static final XorKernel[] kernels = {new WordXorKernel(), new ScalarXorKernel()};
+    private static final XorKernel instance = select();
+
+    static XorKernel get() {
+        return instance;
+    }
+
+    static XorKernel get(String name) {
+        for (XorKernel kernel : kernels) {
+            if (kernel.getName().equals(name)) {
+                return kernel;
+            }
+        }
+        throw new IllegalArgumentException("No XOR kernel " + name);
+    }
+
+    abstract String getName();
+
+    /**
+     * out[outPos, outPos + length) = in[inPos, ...) ^ keyStream[keyStreamPos, ...), all positions
+     * are absolute and buffers must be in native byte order. in and out may be the same memory.
+     */
+    abstract void xor(ByteBuffer in, int inPos, ByteBuffer keyStream, int keyStreamPos, ByteBuffer out, int outPos, int length);
+
+    /**
+     * Fastest correct kernel for heap and for direct buffers, they differ on most JVMs
+     */
+    private static XorKernel select() {
+        Random random = new Random();
+        byte[] data = new byte[SAMPLE_SIZE + 13];
+        byte[] keyStream = new byte[SAMPLE_SIZE + 13];
+        random.nextBytes(data);
+        random.nextBytes(keyStream);
+        ByteBuffer heap = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length).order(ByteOrder.nativeOrder());
+        ByteBuffer keyStreamWords = ByteBuffer.wrap(keyStream).order(ByteOrder.nativeOrder());
+        direct.put(data).clear();
+
+        // scalar is the reference, other kernels must match it on unaligned pieces
+        XorKernel scalar = kernels[kernels.length - 1];
+        ByteBuffer expected = ByteBuffer.allocate(data.length).order(ByteOrder.nativeOrder());
+        scalar.xor(heap, 3, keyStreamWords, 5, expected, 1, SAMPLE_SIZE + 7);
+
+        XorKernel bestHeap = scalar;
+        XorKernel bestDirect = scalar;
+        long bestHeapTime = Long.MAX_VALUE;
+        long bestDirectTime = Long.MAX_VALUE;
+        for (XorKernel kernel : kernels) {
+            ByteBuffer output = ByteBuffer.allocateDirect(data.length).order(ByteOrder.nativeOrder());
+            kernel.xor(heap, 3, keyStreamWords, 5, output, 1, SAMPLE_SIZE + 7);
+            if (!output.equals(expected)) {
+                logger.warning("XOR kernel " + kernel.getName() + " gives wrong output");
+                continue;
+            }
+
+            long heapTime = measure(kernel, heap, keyStreamWords);
+            long directTime = measure(kernel, direct, keyStreamWords);
+            logger.fine("XOR kernel " + kernel.getName() + ": heap " + heapTime + "ns, direct " + directTime + "ns");
+            if (heapTime < bestHeapTime) {
+                bestHeapTime = heapTime;
+                bestHeap = kernel;
+            }
+            if (directTime < bestDirectTime) {
+                bestDirectTime = directTime;
+                bestDirect = kernel;
+            }
+        }
+
+        XorKernel selected = (bestHeap == bestDirect) ? bestHeap : new DispatchXorKernel(bestHeap, bestDirect);
+        logger.info("XOR kernel: " + selected.getName());
+        return selected;
+    }
+
+    private static long measure(XorKernel kernel, ByteBuffer data, ByteBuffer keyStream) {
+        // let the JIT compile the loop first
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            kernel.xor(data, 0, keyStream, 0, data, 0, SAMPLE_SIZE);
+        }
+        long time = Long.MAX_VALUE;
+        for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+            long start = System.nanoTime();
+            kernel.xor(data, 0, keyStream, 0, data, 0, SAMPLE_SIZE);
+            time = Math.min(time, System.nanoTime() - start);
+        }
+        return time;
+    }
+
+    /**
+     * Heap kernel when all buffers are backed by arrays, direct kernel otherwise
+     */
+    private static class DispatchXorKernel extends XorKernel {
+        private final XorKernel _heap;
+        private final XorKernel _direct;
+
+        public DispatchXorKernel(XorKernel heap, XorKernel direct) {
+            _heap = heap;
+            _direct = direct;
+        }
+
+        @Override
+        String getName() {
+            return "heap " + _heap.getName() + ", direct " + _direct.getName();
+        }
+
+        @Override
+        void xor(ByteBuffer in, int inPos, ByteBuffer keyStream, int keyStreamPos, ByteBuffer out, int outPos, int length) {
+            if (in.hasArray() && out.hasArray()) {
+                _heap.xor(in, inPos, keyStream, keyStreamPos, out, outPos, length);
+            }
+            else {
+                _direct.xor(in, inPos, keyStream, keyStreamPos, out, outPos, length);
+            }
+        }
+    }
+
+    /**
+     * 8 bytes at a time through long views, intrinsified for heap and direct buffers on recent JVMs
+     */
+    private static class WordXorKernel extends XorKernel {
+        private static final int WORD_SIZE = 8;
+
+        @Override
+        String getName() {
+            return "word";
+        }
+
+        @Override
+        void xor(ByteBuffer in, int inPos, ByteBuffer keyStream, int keyStreamPos, ByteBuffer out, int outPos, int length) {
+            int i = 0;
+            for (; i + WORD_SIZE <= length; i += WORD_SIZE) {
+                out.putLong(outPos + i, in.getLong(inPos + i) ^ keyStream.getLong(keyStreamPos + i));
+            }
+            for (; i < length; i++) {
+                out.put(outPos + i, (byte) (in.get(inPos + i) ^ keyStream.get(keyStreamPos + i)));
+            }
+        }
+    }
+
+    /**
+     * Byte at a time, the array loop is vectorized by C2 on recent JVMs
+     */
+    private static class ScalarXorKernel extends XorKernel {
+        @Override
+        String getName() {
+            return "scalar";
+        }
+
+        @Override
+        void xor(ByteBuffer in, int inPos, ByteBuffer keyStream, int keyStreamPos, ByteBuffer out, int outPos, int length) {
+            if (in.hasArray() && keyStream.hasArray() && out.hasArray()) {
+                byte[] input = in.array();
+                byte[] key = keyStream.array();
+                byte[] output = out.array();
+                inPos += in.arrayOffset();
+                keyStreamPos += keyStream.arrayOffset();
+                outPos += out.arrayOffset();
+                for (int i = 0; i < length; i++) {
+                    output[outPos + i] = (byte) (input[inPos + i] ^ key[keyStreamPos + i]);
+                }
+                return;
+            }
+            for (int i = 0; i < length; i++) {
+                out.put(outPos + i, (byte) (in.get(inPos + i) ^ keyStream.get(keyStreamPos + i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network;
+
+import com.stfl.misc.Config;
+import com.stfl.network.proxy.IProxy;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Slow reader behind both nio servers, data read from the target must stay bounded
+ * by the write watermarks even while it waits for the crypto executor
+ */
+public class NioBackpressureTest {
+    private static final long TARGET_BYTES = 100L * 1024 * 1024;
+
+    private ServerSocket _target;
+    private NioRemoteServer _remoteServer;
+    private NioLocalServer _localServer;
+    private Socket _client;
+
+    @After
+    public void tearDown() throws IOException {
+        if (_client != null) {
+            _client.close();
+        }
+        if (_localServer != null) {
+            _localServer.close();
+        }
+        if (_remoteServer != null) {
+            _remoteServer.close();
+        }
+        if (_target != null) {
+            _target.close();
+        }
+    }
+
+    @Test
+    public void slowReaderWithCryptoThreads() throws Exception {
+        Config config = new Config("127.0.0.1", freePort(), "127.0.0.1", freePort(), "aes-256-cfb", "test", IProxy.TYPE.SOCKS5);
+        config.setCryptoThreads(2);
+        config.setLogLevel("WARNING");
+
+        startTarget();
+        _remoteServer = new NioRemoteServer(config);
+        start(_remoteServer);
+        _localServer = new NioLocalServer(config);
+        start(_localServer);
+
+        // socks5 handshake, then nothing is read anymore
+        _client = new Socket("127.0.0.1", config.getLocalPort());
+        OutputStream out = _client.getOutputStream();
+        DataInputStream in = new DataInputStream(_client.getInputStream());
+        out.write(new byte[] {5, 1, 0});
+        in.readFully(new byte[2]);
+        int port = _target.getLocalPort();
+        out.write(new byte[] {5, 1, 0, 1, 127, 0, 0, 1, (byte) (port >> 8), (byte) port});
+        in.readFully(new byte[10]);
+
+        ServerStats stats = _remoteServer.getStats();
+        waitUntilStalled(stats);
+
+        long limit = 2L * config.getWriteHighWatermark();
+        assertTrue("target was not read: " + stats.getRemoteBytesIn(), stats.getRemoteBytesIn() > config.getWriteHighWatermark());
+        assertHeld("remote server", _remoteServer.getStats(), limit);
+        assertHeld("local server", _localServer.getStats(), limit);
+    }
+
+    private static void assertHeld(String server, ServerStats stats, long limit) {
+        // read from the target side but not written to the client side yet
+        long held = stats.getRemoteBytesIn() - stats.getLocalBytesOut();
+        assertTrue(server + " holds " + held + " bytes, limit " + limit, held < limit);
+    }
+
+    private static void waitUntilStalled(ServerStats stats) throws InterruptedException {
+        long last = -1;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(1000);
+            long current = stats.getRemoteBytesIn();
+            if ((current == last) && (current > 0)) {
+                return;
+            }
+            last = current;
+        }
+    }
+
+    private void startTarget() throws IOException {
+        _target = new ServerSocket();
+        _target.bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[64 * 1024];
+                try (Socket socket = _target.accept()) {
+                    OutputStream out = socket.getOutputStream();
+                    for (long sent = 0; sent < TARGET_BYTES; sent += chunk.length) {
+                        out.write(chunk);
+                    }
+                } catch (IOException e) {
+                    // closed by tear down
+                }
+            }
+        }, "target");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void start(IServer server) {
+        Thread t = new Thread(server);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
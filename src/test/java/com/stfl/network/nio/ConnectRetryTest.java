@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.network.nio;
+
+import com.stfl.misc.Config;
+import com.stfl.network.NioLocalServer;
+import com.stfl.network.proxy.IProxy;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pipes torn down while waiting to retry an upstream connect
+ */
+public class ConnectRetryTest {
+    private static final int SESSIONS = 20;
+
+    private NioLocalServer _localServer;
+
+    @After
+    public void tearDown() {
+        if (_localServer != null) {
+            _localServer.close();
+        }
+    }
+
+    @Test
+    public void firstFlightReleasedWhenLocalClosesDuringBackoff() throws Exception {
+        // nothing listens on the remote port, every connect is refused
+        Config config = new Config("127.0.0.1", freePort(), "127.0.0.1", freePort(), "aes-256-cfb", "test", IProxy.TYPE.SOCKS5);
+        config.setConnectRetries(3);
+        config.setConnectRetryDelay(2000);
+        config.setCircuitBreakerThreshold(0);
+        config.setLogLevel("SEVERE");
+
+        _localServer = new NioLocalServer(config);
+        Thread t = new Thread(_localServer);
+        t.setDaemon(true);
+        t.start();
+
+        BufferPool pool = BufferPool.getInstance();
+        long leased = pool.getLeased();
+        for (int i = 0; i < SESSIONS; i++) {
+            try (Socket client = new Socket("127.0.0.1", config.getLocalPort())) {
+                OutputStream out = client.getOutputStream();
+                DataInputStream in = new DataInputStream(client.getInputStream());
+                out.write(new byte[] {5, 1, 0});
+                in.readFully(new byte[2]);
+                out.write(new byte[] {5, 1, 0, 1, 127, 0, 0, 1, 0, 80});
+                in.readFully(new byte[10]);
+                // first flight is queued for the upstream which is not connected
+                out.write(new byte[1024]);
+                out.flush();
+                Thread.sleep(100);
+            }
+        }
+
+        // local sockets are closed well before the first retry
+        long deadline = System.currentTimeMillis() + 1000;
+        while ((pool.getLeased() != leased) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(50);
+        }
+        assertEquals("buffers still leased", leased, pool.getLeased());
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
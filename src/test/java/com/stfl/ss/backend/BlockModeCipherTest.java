@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2015, Blake
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. The name of the author may not be used to endorse or promote
+ * products derived from this software without specific prior
+ * written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stfl.ss.backend;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Parallel CFB decrypt against the serial path
+ */
+public class BlockModeCipherTest {
+    private static final String[] CIPHERS = {"aes-256-cfb", "aes-192-cfb", "camellia-192-cfb", "seed-cfb", "bf-cfb"};
+    private static final int[] SIZES = {16384 - 16, 16384, 65536 + 40, 600000};
+    // CryptBase consumes the IV from the front of the first packet and decrypts the rest in place
+    private static final int IV_LENGTH = 16;
+
+    private final ForkJoinPool _pool = new ForkJoinPool(4);
+    private final Random _random = new Random(0);
+
+    @After
+    public void tearDown() {
+        CipherBackendFactory.setParallelDecryptThreshold(0);
+        _pool.shutdown();
+    }
+
+    @Test
+    public void parallelDecryptInPlaceWithOutputBehindInput() throws Exception {
+        CipherBackendFactory.setParallelDecryptThreshold(4096);
+        for (String cipherName : CIPHERS) {
+            for (int size : SIZES) {
+                check(cipherName, size, false);
+                check(cipherName, size, true);
+            }
+        }
+    }
+
+    private void check(String cipherName, int size, boolean isDirect) throws Exception {
+        byte[] key = new byte[getKeyLength(cipherName)];
+        byte[] iv = new byte[16];
+        byte[] plain = new byte[size];
+        _random.nextBytes(key);
+        _random.nextBytes(iv);
+        _random.nextBytes(plain);
+
+        BouncyCastleBackend backend = new BouncyCastleBackend();
+        ByteBuffer cipherText = ByteBuffer.allocate(size);
+        backend.getCipher(cipherName, key, iv, true).process(ByteBuffer.wrap(plain), cipherText);
+
+        ByteBuffer buffer = isDirect ? ByteBuffer.allocateDirect(IV_LENGTH + size) : ByteBuffer.allocate(IV_LENGTH + size);
+        buffer.position(IV_LENGTH);
+        cipherText.flip();
+        buffer.put(cipherText);
+
+        final ByteBuffer in = buffer.duplicate();
+        final ByteBuffer out = buffer.duplicate();
+        in.position(IV_LENGTH);
+        out.position(0);
+        final IStreamCipher decipher = backend.getCipher(cipherName, key, iv, false);
+        _pool.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                decipher.process(in, out);
+                return null;
+            }
+        }).get();
+
+        byte[] result = new byte[size];
+        buffer.position(0);
+        buffer.get(result);
+        assertArrayEquals(cipherName + " " + size + (isDirect ? " direct" : " heap"), plain, result);
+    }
+
+    private static int getKeyLength(String cipherName) {
+        if (cipherName.contains("-256-")) {
+            return 32;
+        }
+        else if (cipherName.contains("-192-")) {
+            return 24;
+        }
+        return 16;
+    }
+}